@@ -0,0 +1,109 @@
+package com.bytedance.boost_multidex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Apk written for benchmarks and the simulator, with classes.dex and secondary dexes of the same size,
+ * and resource entries which only make the central directory as long as a real one's.
+ *
+ * Dex bytes are words picked from a small random dictionary, so that they are about as
+ * compressible as real dexes, and the same for the same seed. Entries have a fixed time, so that
+ * a dex not changed by an update is the same entry in both apks.
+ */
+class SyntheticApk {
+    private static final byte[] DEX_MAGIC = {'d', 'e', 'x', '\n', '0', '3', '5', 0};
+    private static final int DEX_FILE_SIZE_OFFSET = 0x20;
+
+    private static final int WORD_SIZE = 8;
+    private static final int DICTIONARY_SIZE = 512;
+    private static final int RESOURCE_SIZE = 0x400;
+    private static final long ENTRY_TIME = 1262304000000L;
+    private static final long UPDATE_SEED = 0x75706461L;
+
+    private final int mSecondaryDexCount;
+    private final int mDexSize;
+    private final boolean mCompressed;
+    private final int mResourceCount;
+
+    SyntheticApk(int secondaryDexCount, int dexSize, boolean compressed, int resourceCount) {
+        mSecondaryDexCount = secondaryDexCount;
+        mDexSize = dexSize;
+        mCompressed = compressed;
+        mResourceCount = resourceCount;
+    }
+
+    void write(File apkFile, long seed) throws IOException {
+        write(apkFile, seed, 0);
+    }
+
+    /**
+     * @param updatedDexCount count of the last secondary dexes whose bytes differ from those of the same seed,
+     *                        as an update of the app changes them.
+     */
+    void write(File apkFile, long seed, int updatedDexCount) throws IOException {
+        Random random = new Random(seed);
+        byte[] dictionary = new byte[DICTIONARY_SIZE * WORD_SIZE];
+        random.nextBytes(dictionary);
+
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(apkFile)));
+        try {
+            // resources come first in real apks, so dexes are not at the start of the file
+            byte[] resource = new byte[RESOURCE_SIZE];
+            for (int i = 0; i < mResourceCount; i++) {
+                random.nextBytes(resource);
+                putEntry(out, "res/raw/resource_" + i + ".bin", resource, true);
+            }
+
+            int totalDexNum = mSecondaryDexCount + 1;
+            for (int i = 1; i <= totalDexNum; i++) {
+                String name = Constants.DEX_PREFIX + (i == 1 ? "" : String.valueOf(i)) + Constants.DEX_SUFFIX;
+                // every dex has its own random, so that it does not change with others
+                long dexSeed = seed + i + (i > totalDexNum - updatedDexCount ? UPDATE_SEED : 0);
+                putEntry(out, name, obtainDexBytes(new Random(dexSeed), dictionary), mCompressed);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] obtainDexBytes(Random random, byte[] dictionary) {
+        byte[] bytes = new byte[mDexSize];
+        System.arraycopy(DEX_MAGIC, 0, bytes, 0, Math.min(DEX_MAGIC.length, bytes.length));
+        for (int offset = DEX_MAGIC.length; offset < bytes.length; offset += WORD_SIZE) {
+            int word = random.nextInt(DICTIONARY_SIZE);
+            System.arraycopy(dictionary, word * WORD_SIZE, bytes, offset, Math.min(WORD_SIZE, bytes.length - offset));
+        }
+        // file size in header is checked when an extracted dex is reused
+        if (bytes.length >= DEX_FILE_SIZE_OFFSET + 4) {
+            for (int i = 0; i < 4; i++) {
+                bytes[DEX_FILE_SIZE_OFFSET + i] = (byte) (mDexSize >>> (i * 8));
+            }
+        }
+        return bytes;
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, byte[] bytes, boolean compressed)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        if (!compressed) {
+            // stored entries need their sizes and crc before data
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc32.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,139 @@
+package com.bytedance.boost_multidex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Zip, checksum and extraction paths of {@link Utility} against a synthetic apk. Every operation
+ * goes through all secondary dexes, as an installation does, in the same apk session.
+ *
+ * Parameters are overridden when the jar built by :benchmark:jmhJar is run, for example:
+ * java -jar benchmark/build/libs/benchmark-jmh.jar UtilityBenchmark -p dexCount=8 -p compressed=true -prof gc
+ */
+@State(Scope.Benchmark)
+public class UtilityBenchmark {
+    private static final long SEED = 0x424d44L;
+
+    @Param({"6"})
+    public int dexCount;
+
+    @Param({"4194304"})
+    public int dexSize;
+
+    @Param({"true", "false"})
+    public boolean compressed;
+
+    @Param({"2000"})
+    public int resourceCount;
+
+    private File mWorkDir;
+    private File mApkFile;
+    private File mOutputDir;
+    private File[] mDexFiles;
+    private ApkSession mApkSession;
+    private ZipIndex.DexEntry[] mDexEntries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Monitor.init(new BenchmarkMonitor());
+
+        mWorkDir = File.createTempFile("boost_multidex_bench", "");
+        if (!mWorkDir.delete() || !mWorkDir.mkdir()) {
+            throw new IOException("Fail to create work dir " + mWorkDir.getPath());
+        }
+        mOutputDir = Utility.ensureDirCreated(mWorkDir, "output");
+        File dexDir = Utility.ensureDirCreated(mWorkDir, "dex");
+
+        mApkFile = new File(mWorkDir, "base.apk");
+        new SyntheticApk(dexCount, dexSize, compressed, resourceCount).write(mApkFile, SEED);
+
+        mApkSession = new ApkSession(mApkFile);
+        int secondaryDexCount = mApkSession.getSecondaryDexCount();
+        mDexEntries = new ZipIndex.DexEntry[secondaryDexCount];
+        mDexFiles = new File[secondaryDexCount];
+        for (int i = 0; i < secondaryDexCount; i++) {
+            int secondaryNumber = i + 2;
+            mDexEntries[i] = mApkSession.getDexEntry(secondaryNumber);
+            mDexFiles[i] = Utility.obtainEntryFileInZip(mApkSession, mDexEntries[i],
+                    new File(dexDir, Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX));
+        }
+    }
+
+    /**
+     * Outputs of the last invocation are removed, so that every one writes new files as installation does.
+     */
+    @Setup(Level.Invocation)
+    public void clearOutputs() {
+        Utility.clearDirFiles(mOutputDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mApkSession.close();
+        for (File dir : mWorkDir.listFiles()) {
+            if (dir.isDirectory()) {
+                Utility.clearDirFiles(dir);
+            }
+            dir.delete(); // return status ignored
+        }
+        mWorkDir.delete(); // return status ignored
+    }
+
+    @Benchmark
+    public long zipCheckSum() throws IOException {
+        return Utility.doZipCheckSum(mApkFile);
+    }
+
+    @Benchmark
+    public void fileCheckSum(Blackhole blackhole) throws IOException {
+        for (File dexFile : mDexFiles) {
+            blackhole.consume(Utility.doFileCheckSum(dexFile));
+        }
+    }
+
+    @Benchmark
+    public void entryBytesInZip(Blackhole blackhole) throws IOException {
+        for (ZipIndex.DexEntry dexEntry : mDexEntries) {
+            blackhole.consume(Utility.obtainEntryBytesInZip(mApkSession, dexEntry));
+        }
+    }
+
+    @Benchmark
+    public void entryFileInZip(Blackhole blackhole) throws IOException {
+        for (ZipIndex.DexEntry dexEntry : mDexEntries) {
+            blackhole.consume(Utility.obtainEntryFileInZip(mApkSession, dexEntry,
+                    new File(mOutputDir, dexEntry.getName())));
+        }
+    }
+
+    @Benchmark
+    public void zipForEntryFileInZip() throws IOException {
+        for (ZipIndex.DexEntry dexEntry : mDexEntries) {
+            Utility.obtainZipForEntryFileInZip(mApkSession, dexEntry,
+                    new File(mOutputDir, dexEntry.getName() + Constants.ZIP_SUFFIX));
+        }
+    }
+
+    /**
+     * Logging is off and checksums are computed in java, since there is neither logcat nor native library on host.
+     */
+    static class BenchmarkMonitor extends Monitor {
+        BenchmarkMonitor() {
+            setLogLevel(LOG_LEVEL_OFF);
+        }
+
+        @Override
+        protected boolean isEnableNativeCheckSum() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package android.app;
+
+import android.os.Process;
+
+import com.bytedance.boost_multidex.SimulatedDevice;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Only the current process is running, with the name given to the simulated process.
+ */
+public class ActivityManager {
+    public List<RunningAppProcessInfo> getRunningAppProcesses() {
+        RunningAppProcessInfo processInfo = new RunningAppProcessInfo();
+        processInfo.pid = Process.myPid();
+        processInfo.processName = SimulatedDevice.getProcessName();
+        return Collections.singletonList(processInfo);
+    }
+
+    public void getMemoryInfo(MemoryInfo outInfo) {
+        outInfo.availMem = SimulatedDevice.getAvailMem();
+        outInfo.threshold = SimulatedDevice.getMemThreshold();
+        outInfo.lowMemory = SimulatedDevice.isLowMemory();
+    }
+
+    public static class RunningAppProcessInfo {
+        public int pid;
+        public String processName;
+    }
+
+    public static class MemoryInfo {
+        public long availMem;
+        public long threshold;
+        public boolean lowMemory;
+    }
+}
@@ -0,0 +1,33 @@
+package android.app;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+
+/**
+ * The simulated process calls {@link #onHandleIntent} in its own thread, there is no worker thread.
+ */
+public abstract class IntentService extends ContextWrapper {
+    private final String mName;
+
+    public IntentService(String name) {
+        super(null);
+        mName = name;
+    }
+
+    public void onCreate() {
+    }
+
+    public void onDestroy() {
+    }
+
+    public final void stopSelf() {
+        onDestroy();
+    }
+
+    protected abstract void onHandleIntent(Intent intent);
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
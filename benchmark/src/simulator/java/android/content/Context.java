@@ -0,0 +1,29 @@
+package android.content;
+
+import android.content.pm.ApplicationInfo;
+
+import java.io.File;
+
+/**
+ * Methods of the context used by the library.
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0x0000;
+
+    public static final String ACTIVITY_SERVICE = "activity";
+    public static final String POWER_SERVICE = "power";
+
+    public abstract File getFilesDir();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract ApplicationInfo getApplicationInfo();
+
+    public abstract ClassLoader getClassLoader();
+
+    public abstract Object getSystemService(String name);
+
+    public abstract ComponentName startService(Intent service);
+
+    public abstract Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter);
+}
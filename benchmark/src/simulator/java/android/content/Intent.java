@@ -0,0 +1,40 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Intent {
+    public static final String ACTION_BATTERY_CHANGED = "android.intent.action.BATTERY_CHANGED";
+
+    private final String mAction;
+    private final ComponentName mComponent;
+    private final Map<String, Object> mExtras = new HashMap<>();
+
+    public Intent(String action) {
+        mAction = action;
+        mComponent = null;
+    }
+
+    public Intent(Context packageContext, Class<?> cls) {
+        mAction = null;
+        mComponent = new ComponentName(packageContext.getApplicationInfo().packageName, cls.getName());
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent putExtra(String name, int value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        Object value = mExtras.get(name);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+}
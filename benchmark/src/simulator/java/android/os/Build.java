@@ -0,0 +1,12 @@
+package android.os;
+
+import com.bytedance.boost_multidex.SimulatedDevice;
+
+public class Build {
+    /**
+     * Not a constant as it is on device, so that paths of every version are taken by {@code simulator.sdk}.
+     */
+    public static class VERSION {
+        public static final int SDK_INT = SimulatedDevice.getSdkInt();
+    }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+import com.bytedance.boost_multidex.SimulatedDevice;
+
+import java.io.File;
+
+public class Environment {
+    public static File getDataDirectory() {
+        return SimulatedDevice.getDataDirectory();
+    }
+}
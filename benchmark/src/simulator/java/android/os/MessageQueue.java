@@ -0,0 +1,85 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+public final class MessageQueue {
+    private final LinkedList<Runnable> mMessages = new LinkedList<>();
+    private final List<IdleHandler> mIdleHandlers = new ArrayList<>();
+    private boolean mQuitting;
+
+    MessageQueue() {
+    }
+
+    public interface IdleHandler {
+        boolean queueIdle();
+    }
+
+    public void addIdleHandler(IdleHandler handler) {
+        synchronized (this) {
+            mIdleHandlers.add(handler);
+        }
+    }
+
+    public void removeIdleHandler(IdleHandler handler) {
+        synchronized (this) {
+            mIdleHandlers.remove(handler);
+        }
+    }
+
+    synchronized boolean enqueueMessage(Runnable r) {
+        if (mQuitting) {
+            return false;
+        }
+        mMessages.add(r);
+        notifyAll();
+        return true;
+    }
+
+    synchronized void quit() {
+        mQuitting = true;
+        notifyAll();
+    }
+
+    /**
+     * Idle handlers run once each time the queue becomes empty, as they do on device.
+     */
+    void loop() {
+        boolean idle = false;
+        while (true) {
+            Runnable message;
+            IdleHandler[] idleHandlers = null;
+            synchronized (this) {
+                message = mMessages.poll();
+                if (message == null) {
+                    if (mQuitting) {
+                        return;
+                    }
+                    if (idle) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    idleHandlers = mIdleHandlers.toArray(new IdleHandler[0]);
+                }
+            }
+
+            if (message != null) {
+                idle = false;
+                message.run();
+                continue;
+            }
+
+            idle = true;
+            for (IdleHandler idleHandler : idleHandlers) {
+                if (!idleHandler.queueIdle()) {
+                    removeIdleHandler(idleHandler);
+                }
+            }
+        }
+    }
+}
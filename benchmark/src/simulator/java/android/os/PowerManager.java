@@ -0,0 +1,10 @@
+package android.os;
+
+import com.bytedance.boost_multidex.SimulatedDevice;
+
+public final class PowerManager {
+    @Deprecated
+    public boolean isScreenOn() {
+        return SimulatedDevice.isScreenOn();
+    }
+}
@@ -0,0 +1,35 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+public class Process {
+    /**
+     * Exit status of a simulated process killed by itself, as a process killed by SIGKILL.
+     */
+    public static final int KILLED_EXIT_STATUS = 128 + 9;
+
+    private static final int sPid = obtainPid();
+
+    private static int obtainPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        try {
+            return Integer.parseInt(index < 0 ? name : name.substring(0, index));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static int myPid() {
+        return sPid;
+    }
+
+    /**
+     * Only the current process is killed, at once and without shutdown hooks as SIGKILL does.
+     */
+    public static void killProcess(int pid) {
+        if (pid == sPid) {
+            Runtime.getRuntime().halt(KILLED_EXIT_STATUS);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package android.os;
+
+import com.bytedance.boost_multidex.SimulatorStats;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Sections are timed and counted in {@link SimulatorStats} as phases, rather than sent to systrace.
+ */
+public final class Trace {
+    private static final ThreadLocal<Deque<Section>> sSections = new ThreadLocal<Deque<Section>>() {
+        @Override
+        protected Deque<Section> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private Trace() {
+    }
+
+    public static void beginSection(String sectionName) {
+        sSections.get().push(new Section(sectionName, System.nanoTime()));
+    }
+
+    public static void endSection() {
+        Section section = sSections.get().poll();
+        if (section != null) {
+            SimulatorStats.addPhase(section.mName, System.nanoTime() - section.mStart);
+        }
+    }
+
+    private static class Section {
+        final String mName;
+        final long mStart;
+
+        Section(String name, long start) {
+            mName = name;
+            mStart = start;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.bytedance.boost_multidex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.Adler32;
+
+import dalvik.system.DexFile;
+
+/**
+ * Native methods of the library simulated in java, with the same signatures. Whether fast load is
+ * supported is {@code simulator.fastLoad}, and loading a dex directly takes the time of
+ * {@link SimulatorConfig#OP_LOAD_DIRECT}, whose failure is thrown as native code does.
+ */
+final class BoostNative {
+    private static volatile boolean alreadyInit;
+
+    private static boolean supportFastLoadDex;
+
+    static synchronized boolean isSupportFastLoad() {
+        if (!alreadyInit) {
+            supportFastLoadDex = SimulatorConfig.getBoolean("fastLoad", true);
+            Result.get().supportFastLoadDex = supportFastLoadDex;
+            alreadyInit = true;
+        }
+
+        return supportFastLoadDex;
+    }
+
+    static Object loadDirectDex(String fileName, byte[] fileContents) {
+        long length = fileContents != null ? fileContents.length : new File(fileName).length();
+        return loadDirect(fileName, length);
+    }
+
+    static Object loadDirectDexInZip(String zipPath, long offset, int length) {
+        if (offset + length > new File(zipPath).length()) {
+            throw new RuntimeException("Dex is out of zip " + zipPath);
+        }
+        return loadDirect(zipPath, length);
+    }
+
+    private static Object loadDirect(String fileName, long length) {
+        try {
+            SimulatorConfig.getOperation(SimulatorConfig.OP_LOAD_DIRECT).perform(length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new DexFile(fileName);
+    }
+
+    static long obtainCheckSum(String path) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(path);
+            Adler32 adler32 = new Adler32();
+            byte[] buffer = new byte[Constants.CHECKSUM_BUFFER_SIZE];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                adler32.update(buffer, 0, length);
+            }
+            return adler32.getValue();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            Utility.closeQuietly(inputStream);
+        }
+    }
+
+    static void recoverAction() {
+    }
+
+    static boolean makeOptDexFile(String filePath, String optFilePath) {
+        try {
+            SimulatedDevice.dexopt(new File(filePath), new File(optFilePath));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Phases of native loading are not simulated, they are all not reached.
+     */
+    static void obtainPhaseTimes(long[] times) {
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 0;
+        }
+    }
+}
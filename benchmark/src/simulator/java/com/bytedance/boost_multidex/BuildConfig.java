@@ -0,0 +1,9 @@
+package com.bytedance.boost_multidex;
+
+/**
+ * Generated by android gradle plugin for the library, which is not applied to the simulator.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+    public static final String VERSION_NAME = "simulator";
+}
@@ -0,0 +1,347 @@
+package com.bytedance.boost_multidex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Runs install sequences of the library on host, in processes whose device is simulated by shims of
+ * android and dalvik apis, and reports phase timings and bytes moved of every step, for each strategy.
+ *
+ * A sequence is: cold launch, optimization, warm launch, launch after an update of the app, optimization
+ * preempted by a launch, optimization resumed, and warm launch again. Optimization only runs if the last
+ * launch started {@link OptimizeService}. Strategies are {@link #STRATEGY_FAST_LOAD}, where dexes are
+ * loaded directly at first and optimized in background, and {@link #STRATEGY_DEXOPT}, where fast load
+ * is not supported and they are optimized at launch.
+ *
+ * Properties, all prefixed by {@link SimulatorConfig#PREFIX} and passed to every simulated process:
+ * workDir, strategies, dexCount, dexSize, compressed, resourceCount, seed, updatedDexCount, preemptDelay,
+ * models of operations in {@link SimulatorConfig}, and the device of {@link SimulatedDevice}.
+ * Logs of every process are kept in the work dir of each strategy.
+ */
+public final class InstallSimulator {
+    static final String STRATEGY_FAST_LOAD = "fastLoad";
+    static final String STRATEGY_DEXOPT = "dexopt";
+
+    private static final String[] TYPE_NAMES = {"ApkBuffer", "DexBuffer", "DexOpt", "ZipOpt"};
+
+    private final String mStrategy;
+    private final File mStrategyDir;
+    private final File mDeviceDir;
+    private final SyntheticApk mApk;
+    private final long mSeed;
+    private final List<Step> mSteps = new ArrayList<>();
+
+    private InstallSimulator(String strategy, File workDir) {
+        mStrategy = strategy;
+        mStrategyDir = new File(workDir, strategy);
+        mDeviceDir = new File(mStrategyDir, "device");
+        mApk = new SyntheticApk(SimulatorConfig.getInt("dexCount", 4), SimulatorConfig.getInt("dexSize", 2 << 20),
+                SimulatorConfig.getBoolean("compressed", true), SimulatorConfig.getInt("resourceCount", 500));
+        mSeed = SimulatorConfig.getLong("seed", 0x424d44L);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File workDir = new File(SimulatorConfig.getString("workDir", "build/simulator")).getAbsoluteFile();
+        String[] strategies = SimulatorConfig.getString("strategies", STRATEGY_FAST_LOAD + "," + STRATEGY_DEXOPT)
+                .split(",");
+
+        List<InstallSimulator> simulators = new ArrayList<>();
+        for (String strategy : strategies) {
+            InstallSimulator simulator = new InstallSimulator(strategy.trim(), workDir);
+            simulator.runSequence();
+            simulators.add(simulator);
+        }
+
+        System.out.println();
+        System.out.println("Launch costs in ms, install / after install:");
+        for (InstallSimulator simulator : simulators) {
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "%-10s", simulator.mStrategy));
+            for (Step step : simulator.mSteps) {
+                if (SimulatedProcess.TYPE_APP.equals(step.mType) && step.mReport != null) {
+                    line.append(String.format(Locale.US, "  %s %d/%d", step.mName,
+                            toMillis(step.getLong(SimulatedProcess.KEY_INSTALL_NANOS)),
+                            toMillis(step.getLong(SimulatedProcess.KEY_AFTER_INSTALL_NANOS))));
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    private void runSequence() throws Exception {
+        System.out.println("== Strategy " + mStrategy + ", logs in " + mStrategyDir.getPath());
+        deleteRecursively(mStrategyDir);
+        File apkFile = new File(new File(new File(mDeviceDir, "data"), "app"), SimulatedDevice.PACKAGE_NAME + "-1.apk");
+        Utility.mkdirChecked(apkFile.getParentFile());
+        mApk.write(apkFile, mSeed);
+
+        runApp("cold");
+        runOptimize("optimize");
+        runApp("warm");
+
+        mApk.write(apkFile, mSeed, SimulatorConfig.getInt("updatedDexCount", 1));
+        runApp("update");
+        runPreempted("preempt");
+        runOptimize("resume");
+        runApp("warm2");
+    }
+
+    private void runApp(String name) throws Exception {
+        Map<String, long[]> snapshot = takeSnapshot();
+        report(finish(start(name, SimulatedProcess.TYPE_APP)), snapshot);
+    }
+
+    private void runOptimize(String name) throws Exception {
+        if (!isServiceRequested(name)) {
+            return;
+        }
+        Map<String, long[]> snapshot = takeSnapshot();
+        report(finish(start(name, SimulatedProcess.TYPE_OPT)), snapshot);
+    }
+
+    /**
+     * A launch while the optimizing process holds the install lock, which kills that process
+     * through the prepare lock and installs at once.
+     */
+    private void runPreempted(String name) throws Exception {
+        if (!isServiceRequested(name)) {
+            return;
+        }
+        Map<String, long[]> snapshot = takeSnapshot();
+        Step optStep = start(name + "-opt", SimulatedProcess.TYPE_OPT);
+        Thread.sleep(SimulatorConfig.getLong("preemptDelay", 2_000L));
+        Step appStep = start(name + "-app", SimulatedProcess.TYPE_APP);
+        report(finish(optStep), null);
+        report(finish(appStep), snapshot);
+    }
+
+    private boolean isServiceRequested(String name) {
+        if (new File(mDeviceDir, SimulatedContext.SERVICE_REQUEST_FILENAME).exists()) {
+            return true;
+        }
+        System.out.println(String.format(Locale.US, "%-12s not requested", name));
+        return false;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete(); // return status ignored
+    }
+
+    /**
+     * Files of the data dir, with their lengths and modified times.
+     */
+    private Map<String, long[]> takeSnapshot() {
+        Map<String, long[]> snapshot = new HashMap<>();
+        takeSnapshot(new File(mDeviceDir, "data"), snapshot);
+        return snapshot;
+    }
+
+    private static void takeSnapshot(File file, Map<String, long[]> snapshot) {
+        File[] files = file.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File child : files) {
+            if (child.isDirectory()) {
+                takeSnapshot(child, snapshot);
+            } else {
+                snapshot.put(child.getPath(), new long[]{child.length(), child.lastModified()});
+            }
+        }
+    }
+
+    /**
+     * The service request is taken by the process started, and a new one is left if it starts the service again.
+     */
+    private Step start(String name, String type) throws IOException {
+        Properties properties = SimulatorConfig.obtainProperties();
+        properties.setProperty(SimulatorConfig.PREFIX + "deviceDir", mDeviceDir.getPath());
+        properties.setProperty(SimulatorConfig.PREFIX + "fastLoad", String.valueOf(!STRATEGY_DEXOPT.equals(mStrategy)));
+        properties.setProperty(SimulatorConfig.PREFIX + "process", SimulatedProcess.TYPE_OPT.equals(type)
+                ? SimulatedDevice.PACKAGE_NAME + SimulatedDevice.OPT_PROCESS_SUFFIX : SimulatedDevice.PACKAGE_NAME);
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (!System.getProperty("java.specification.version").startsWith("1.")) {
+            // the library reaches into class loaders by reflection, as it does on device
+            command.add("--add-opens=java.base/java.lang=ALL-UNNAMED");
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String key : properties.stringPropertyNames()) {
+            command.add("-D" + key + "=" + properties.getProperty(key));
+        }
+        command.add(SimulatedProcess.class.getName());
+        command.add(type);
+        command.add(obtainReportFile(name).getPath());
+
+        File requestFile = new File(mDeviceDir, SimulatedContext.SERVICE_REQUEST_FILENAME);
+        requestFile.delete(); // return status ignored
+        obtainReportFile(name).delete(); // return status ignored
+
+        Step step = new Step(name, type);
+        step.mStartNanos = System.nanoTime();
+        step.mProcess = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(mStrategyDir, name + ".log"))
+                .start();
+        return step;
+    }
+
+    private File obtainReportFile(String name) {
+        return new File(mStrategyDir, name + ".report");
+    }
+
+    private Step finish(Step step) throws Exception {
+        step.mExitValue = step.mProcess.waitFor();
+        step.mWallNanos = System.nanoTime() - step.mStartNanos;
+
+        File reportFile = obtainReportFile(step.mName);
+        if (reportFile.exists()) {
+            step.mReport = new Properties();
+            FileInputStream inputStream = new FileInputStream(reportFile);
+            try {
+                step.mReport.load(inputStream);
+            } finally {
+                Utility.closeQuietly(inputStream);
+            }
+        }
+        mSteps.add(step);
+        return step;
+    }
+
+    private void report(Step step, Map<String, long[]> snapshot) {
+        StringBuilder line = new StringBuilder(String.format(Locale.US, "%-12s %-3s exit %3d, wall %d ms",
+                step.mName, step.mType, step.mExitValue, toMillis(step.mWallNanos)));
+        if (snapshot != null) {
+            long[] moved = diffSnapshot(snapshot, takeSnapshot());
+            line.append(String.format(Locale.US, ", written %d KB, removed %d KB", moved[0] >> 10, moved[1] >> 10));
+        }
+        if (step.mReport == null) {
+            line.append(step.mExitValue == android.os.Process.KILLED_EXIT_STATUS ? ", killed" : ", no report");
+            System.out.println(line);
+            return;
+        }
+
+        if (SimulatedProcess.TYPE_APP.equals(step.mType)) {
+            line.append(String.format(Locale.US, ", install %d ms, after install %d ms, holders [%s], reused %d",
+                    toMillis(step.getLong(SimulatedProcess.KEY_INSTALL_NANOS)),
+                    toMillis(step.getLong(SimulatedProcess.KEY_AFTER_INSTALL_NANOS)),
+                    step.mReport.getProperty(SimulatedProcess.KEY_HOLDERS, ""),
+                    step.getLong(SimulatedProcess.KEY_REUSED_DEX_COUNT)));
+        } else {
+            line.append(String.format(Locale.US, ", optimize %d ms",
+                    toMillis(step.getLong(SimulatedProcess.KEY_OPTIMIZE_NANOS))));
+        }
+        line.append(", next [").append(toTypeNames(step.mReport.getProperty(SimulatedProcess.KEY_TYPES, "")))
+                .append(']');
+        if (step.getLong(SimulatedProcess.KEY_UN_FATAL_COUNT) > 0) {
+            line.append(", unfatal ").append(step.getLong(SimulatedProcess.KEY_UN_FATAL_COUNT));
+        }
+        if (step.mReport.getProperty(SimulatedProcess.KEY_FATAL) != null) {
+            line.append(", fatal ").append(step.mReport.getProperty(SimulatedProcess.KEY_FATAL));
+        }
+        System.out.println(line);
+
+        System.out.println("    phases: " + collectStats(step.mReport, SimulatorStats.KEY_PHASE_NANOS,
+                SimulatorStats.KEY_PHASE_COUNT, false));
+        System.out.println("    ops:    " + collectStats(step.mReport, SimulatorStats.KEY_OP_NANOS,
+                SimulatorStats.KEY_OP_COUNT, true));
+    }
+
+    /**
+     * @return bytes of files new or modified, and bytes of files removed.
+     */
+    private static long[] diffSnapshot(Map<String, long[]> before, Map<String, long[]> after) {
+        long written = 0;
+        long removed = 0;
+        for (Map.Entry<String, long[]> entry : after.entrySet()) {
+            long[] old = before.get(entry.getKey());
+            if (old == null || old[0] != entry.getValue()[0] || old[1] != entry.getValue()[1]) {
+                written += entry.getValue()[0];
+            }
+        }
+        for (Map.Entry<String, long[]> entry : before.entrySet()) {
+            if (!after.containsKey(entry.getKey())) {
+                removed += entry.getValue()[0];
+            }
+        }
+        return new long[]{written, removed};
+    }
+
+    /**
+     * Stats of the same name in milliseconds with their counts, and bytes with failures of operations.
+     */
+    private static String collectStats(Properties report, String nanosKey, String countKey, boolean operation) {
+        Map<String, String> stats = new TreeMap<>();
+        for (String key : report.stringPropertyNames()) {
+            if (!key.startsWith(nanosKey)) {
+                continue;
+            }
+            String name = key.substring(nanosKey.length());
+            StringBuilder stat = new StringBuilder(String.format(Locale.US, "%s %.1fms x%s", name,
+                    Long.parseLong(report.getProperty(key)) / 1e6, report.getProperty(countKey + name)));
+            if (operation) {
+                stat.append(' ').append(Long.parseLong(report.getProperty(SimulatorStats.KEY_OP_BYTES + name, "0")) >> 10)
+                        .append("KB");
+                String failures = report.getProperty(SimulatorStats.KEY_OP_FAILURES + name);
+                if (failures != null) {
+                    stat.append(" failed ").append(failures);
+                }
+            }
+            stats.put(name, stat.toString());
+        }
+        return String.join(", ", stats.values());
+    }
+
+    private static String toTypeNames(String types) {
+        if (types.isEmpty()) {
+            return types;
+        }
+        StringBuilder names = new StringBuilder();
+        for (String type : types.split(",")) {
+            int index = Integer.parseInt(type);
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(index >= 0 && index < TYPE_NAMES.length ? TYPE_NAMES[index] : "Invalid");
+        }
+        return names.toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static class Step {
+        final String mName;
+        final String mType;
+        Process mProcess;
+        long mStartNanos;
+        int mExitValue;
+        long mWallNanos;
+        Properties mReport;
+
+        Step(String name, String type) {
+            mName = name;
+            mType = type;
+        }
+
+        long getLong(String key) {
+            return Long.parseLong(mReport.getProperty(key, "0"));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.bytedance.boost_multidex;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Context of the simulated app, whose files are in its data dir of {@link SimulatedDevice}.
+ * A service started is not run at once, it is requested by a file which the simulator looks for
+ * once the process exits, and then the service is run in a new process as system does.
+ */
+class SimulatedContext extends Context {
+    static final String SERVICE_REQUEST_FILENAME = "service_requested";
+
+    private final ApplicationInfo mApplicationInfo = new ApplicationInfo();
+    private final ClassLoader mClassLoader;
+    private final Map<String, SharedPreferences> mPreferences = new HashMap<>();
+
+    SimulatedContext(ClassLoader classLoader) {
+        mClassLoader = classLoader;
+        mApplicationInfo.packageName = SimulatedDevice.PACKAGE_NAME;
+        mApplicationInfo.sourceDir = SimulatedDevice.getApkFile().getPath();
+        mApplicationInfo.dataDir = SimulatedDevice.getAppDataDir().getPath();
+        mApplicationInfo.targetSdkVersion = SimulatedDevice.getSdkInt();
+    }
+
+    static File obtainServiceRequestFile() {
+        return new File(SimulatedDevice.getDeviceDir(), SERVICE_REQUEST_FILENAME);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return new File(SimulatedDevice.getAppDataDir(), "files");
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new SimulatedPreferences(
+                    new File(new File(SimulatedDevice.getAppDataDir(), "shared_prefs"), name + ".xml"));
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public ApplicationInfo getApplicationInfo() {
+        return mApplicationInfo;
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return mClassLoader;
+    }
+
+    @Override
+    public Object getSystemService(String name) {
+        if (ACTIVITY_SERVICE.equals(name)) {
+            return new ActivityManager();
+        } else if (POWER_SERVICE.equals(name)) {
+            return new PowerManager();
+        }
+        return null;
+    }
+
+    @Override
+    public ComponentName startService(Intent service) {
+        ComponentName component = service.getComponent();
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(obtainServiceRequestFile());
+            outputStream.write(component.getClassName().getBytes("UTF-8"));
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to request service " + component.getClassName(), e);
+            return null;
+        } finally {
+            Utility.closeQuietly(outputStream);
+        }
+        return component;
+    }
+
+    /**
+     * Only the sticky battery state is received, whose plugged is {@code simulator.charging}.
+     */
+    @Override
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        if (receiver != null || !filter.hasAction(Intent.ACTION_BATTERY_CHANGED)) {
+            return null;
+        }
+        Intent intent = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        intent.putExtra(BatteryManager.EXTRA_PLUGGED,
+                SimulatedDevice.isCharging() ? BatteryManager.BATTERY_PLUGGED_AC : 0);
+        return intent;
+    }
+}
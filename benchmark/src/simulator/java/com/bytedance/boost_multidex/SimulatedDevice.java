@@ -0,0 +1,109 @@
+package com.bytedance.boost_multidex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The device simulated processes run on, whose /data partition is a directory of the host.
+ * Free space of the partition is {@code simulator.storage} minus all files in it, so that
+ * files written by installations and optimizations take the space as they do on a device.
+ */
+public final class SimulatedDevice {
+    static final String PACKAGE_NAME = "com.bytedance.app.boost_multidex";
+    static final String OPT_PROCESS_SUFFIX = ":boost_multidex";
+
+    private static final long DEFAULT_STORAGE = 2_000_000_000L;
+    private static final long DEFAULT_AVAIL_MEM = 400_000_000L;
+    private static final long DEFAULT_MEM_THRESHOLD = 64_000_000L;
+
+    private SimulatedDevice() {
+    }
+
+    static File getDeviceDir() {
+        return new File(SimulatorConfig.getString("deviceDir", "device"));
+    }
+
+    public static File getDataDirectory() {
+        return new DataDirectory(new File(getDeviceDir(), "data").getPath());
+    }
+
+    static File getAppDataDir() {
+        return new File(new File(getDataDirectory(), "data"), PACKAGE_NAME);
+    }
+
+    static File getApkFile() {
+        return new File(new File(getDataDirectory(), "app"), PACKAGE_NAME + "-1.apk");
+    }
+
+    public static String getProcessName() {
+        return SimulatorConfig.getString("process", PACKAGE_NAME);
+    }
+
+    public static int getSdkInt() {
+        return SimulatorConfig.getInt("sdk", 19);
+    }
+
+    public static long getAvailMem() {
+        return SimulatorConfig.getLong("availMem", DEFAULT_AVAIL_MEM);
+    }
+
+    public static long getMemThreshold() {
+        return SimulatorConfig.getLong("memThreshold", DEFAULT_MEM_THRESHOLD);
+    }
+
+    public static boolean isLowMemory() {
+        return getAvailMem() < getMemThreshold();
+    }
+
+    public static boolean isCharging() {
+        return SimulatorConfig.getBoolean("charging", false);
+    }
+
+    public static boolean isScreenOn() {
+        return SimulatorConfig.getBoolean("screenOn", true);
+    }
+
+    /**
+     * Optimize the dex to the odex by {@link SimulatorConfig#OP_DEXOPT}. The odex is as large as the dex,
+     * and nothing is written if the operation fails.
+     */
+    public static void dexopt(File dexFile, File optFile) throws IOException {
+        SimulatorConfig.getOperation(SimulatorConfig.OP_DEXOPT).perform(dexFile.length());
+        Files.copy(dexFile.toPath(), optFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static long obtainUsedSpace(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                size += obtainUsedSpace(child);
+            }
+        }
+        return size;
+    }
+
+    private static class DataDirectory extends File {
+        private static final long serialVersionUID = 1L;
+
+        DataDirectory(String path) {
+            super(path);
+        }
+
+        @Override
+        public long getFreeSpace() {
+            long freeSpace = SimulatorConfig.getLong("storage", DEFAULT_STORAGE) - obtainUsedSpace(this);
+            return Math.max(Math.min(freeSpace, super.getFreeSpace()), 0);
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return getFreeSpace();
+        }
+    }
+}
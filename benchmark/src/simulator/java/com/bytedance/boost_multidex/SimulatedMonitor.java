@@ -0,0 +1,66 @@
+package com.bytedance.boost_multidex;
+
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Monitor of a simulated process. Install trace is on, so that phases are counted in {@link SimulatorStats}.
+ * The simulated device is otherwise idle, load of the host running the simulator is not taken as its load.
+ * Work after installation is counted, and the main looper quits once all of it is done.
+ */
+class SimulatedMonitor extends Monitor {
+    private int mPendingCount;
+    private boolean mQuitWhenDone;
+
+    SimulatedMonitor() {
+        setLogLevel(SimulatorConfig.getInt("logLevel", Log.INFO));
+    }
+
+    @Override
+    protected boolean isEnableInstallTrace() {
+        return true;
+    }
+
+    @Override
+    protected boolean isQuietAfterInstall(float cpuLoad, long mainThreadLatency) {
+        return true;
+    }
+
+    @Override
+    protected boolean isReadyToOptimize(float cpuLoad, boolean charging, boolean screenOn) {
+        return true;
+    }
+
+    @Override
+    protected void doAfterInstall(final Runnable optRunnable) {
+        synchronized (this) {
+            mPendingCount++;
+        }
+        super.doAfterInstall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    optRunnable.run();
+                } finally {
+                    onAfterInstallDone();
+                }
+            }
+        });
+    }
+
+    synchronized void quitWhenAfterInstallDone() {
+        mQuitWhenDone = true;
+        quitIfDone();
+    }
+
+    private synchronized void onAfterInstallDone() {
+        mPendingCount--;
+        quitIfDone();
+    }
+
+    private void quitIfDone() {
+        if (mQuitWhenDone && mPendingCount == 0) {
+            Looper.getMainLooper().quitSafely();
+        }
+    }
+}
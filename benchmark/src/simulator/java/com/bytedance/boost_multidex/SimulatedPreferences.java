@@ -0,0 +1,157 @@
+package com.bytedance.boost_multidex;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Preferences kept in a xml file of properties, whose commit takes the time of
+ * {@link SimulatorConfig#OP_PREFS_COMMIT} and fails by its failure rate.
+ */
+class SimulatedPreferences implements SharedPreferences {
+    private final File mFile;
+    private final Properties mProperties = new Properties();
+
+    SimulatedPreferences(File file) {
+        mFile = file;
+        if (!file.exists()) {
+            return;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            mProperties.loadFromXML(inputStream);
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to load preferences " + file.getPath(), e);
+        } finally {
+            Utility.closeQuietly(inputStream);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        Map<String, String> all = new HashMap<>();
+        for (String key : mProperties.stringPropertyNames()) {
+            all.put(key, mProperties.getProperty(key));
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        return mProperties.getProperty(key, defValue);
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        String value = mProperties.getProperty(key);
+        return value == null ? defValue : Integer.parseInt(value);
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        String value = mProperties.getProperty(key);
+        return value == null ? defValue : Long.parseLong(value);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        String value = mProperties.getProperty(key);
+        return value == null ? defValue : Boolean.parseBoolean(value);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mProperties.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    private synchronized boolean commit(Map<String, String> modified, boolean clear) {
+        Properties properties = new Properties();
+        if (!clear) {
+            properties.putAll(mProperties);
+        }
+        for (Map.Entry<String, String> entry : modified.entrySet()) {
+            if (entry.getValue() == null) {
+                properties.remove(entry.getKey());
+            } else {
+                properties.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+
+        FileOutputStream outputStream = null;
+        try {
+            SimulatorConfig.getOperation(SimulatorConfig.OP_PREFS_COMMIT).perform(0);
+            Utility.mkdirChecked(mFile.getParentFile());
+            outputStream = new FileOutputStream(mFile);
+            properties.storeToXML(outputStream, null);
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to commit preferences " + mFile.getPath(), e);
+            return false;
+        } finally {
+            Utility.closeQuietly(outputStream);
+        }
+
+        mProperties.clear();
+        mProperties.putAll(properties);
+        return true;
+    }
+
+    private class EditorImpl implements Editor {
+        private final Map<String, String> mModified = new HashMap<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            mModified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return putString(key, String.valueOf(value));
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mModified.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return SimulatedPreferences.this.commit(mModified, mClear);
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
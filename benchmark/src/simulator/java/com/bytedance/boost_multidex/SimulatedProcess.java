@@ -0,0 +1,166 @@
+package com.bytedance.boost_multidex;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import dalvik.system.PathClassLoader;
+
+/**
+ * Main of a process of the simulated app, or of its optimizing process, each run in its own vm by
+ * {@link InstallSimulator}. What happened is written as properties to the report file when it exits,
+ * and there is no report if it is killed.
+ *
+ * Arguments are the type of the process, {@link #TYPE_APP} or {@link #TYPE_OPT}, and the report file.
+ */
+public final class SimulatedProcess {
+    static final String TYPE_APP = "app";
+    static final String TYPE_OPT = "opt";
+
+    static final String KEY_INSTALL_NANOS = "install.nanos";
+    static final String KEY_AFTER_INSTALL_NANOS = "afterInstall.nanos";
+    static final String KEY_OPTIMIZE_NANOS = "optimize.nanos";
+    static final String KEY_HOLDERS = "holders";
+    static final String KEY_TYPES = "types";
+    static final String KEY_REUSED_DEX_COUNT = "reusedDexCount";
+    static final String KEY_UN_FATAL_COUNT = "unFatalCount";
+    static final String KEY_FATAL = "fatal";
+
+    private static final Pattern HOLDER_PATTERN = Pattern.compile("\\$(\\w+)@");
+
+    private static final Properties sReport = new Properties();
+    private static volatile long sOptimizeStart;
+
+    private SimulatedProcess() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // a dalvik vm, otherwise the library takes it as one supporting multidex and does nothing
+        System.setProperty("java.vm.version", "1.6.0");
+
+        final File reportFile = new File(args[1]);
+        final SimulatedContext context = new SimulatedContext(
+                new PathClassLoader(SimulatedProcess.class.getClassLoader()));
+        Runtime.getRuntime().addShutdownHook(new Thread("BoostMultiDex-SimulatorReport") {
+            @Override
+            public void run() {
+                writeReport(context, reportFile);
+            }
+        });
+
+        Looper.prepareMainLooper();
+        SimulatedMonitor monitor = new SimulatedMonitor();
+        if (TYPE_OPT.equals(args[0])) {
+            runOptimize(context, monitor);
+        } else {
+            runApp(context, monitor);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Install as an application does in attachBaseContext, then loop main thread until work after
+     * installation is done, such as starting the optimizing service.
+     */
+    private static void runApp(Context context, SimulatedMonitor monitor) {
+        long start = System.nanoTime();
+        Result result = BoostMultiDex.install(context, monitor);
+        long installEnd = System.nanoTime();
+        putReport(KEY_INSTALL_NANOS, installEnd - start);
+        putResult(result);
+
+        monitor.quitWhenAfterInstallDone();
+        Looper.loop();
+        putReport(KEY_AFTER_INSTALL_NANOS, System.nanoTime() - installEnd);
+    }
+
+    /**
+     * Install in the optimizing process as the application does, then handle the intent of
+     * {@link OptimizeService}, which exits the process once it is done.
+     */
+    private static void runOptimize(Context context, SimulatedMonitor monitor) throws Exception {
+        BoostMultiDex.install(context, monitor);
+
+        OptimizeService service = new OptimizeService();
+        Method attachMethod = Utility.findMethodRecursively(OptimizeService.class, "attachBaseContext", Context.class);
+        attachMethod.invoke(service, context);
+        service.onCreate();
+
+        sOptimizeStart = System.nanoTime();
+        service.onHandleIntent(new Intent(context, OptimizeService.class));
+    }
+
+    private static void putResult(Result result) {
+        if (result == null) {
+            return;
+        }
+        StringBuilder holders = new StringBuilder();
+        for (String dexInfo : result.dexInfoList) {
+            Matcher matcher = HOLDER_PATTERN.matcher(dexInfo);
+            if (holders.length() > 0) {
+                holders.append(',');
+            }
+            holders.append(matcher.find() ? matcher.group(1) : "?");
+        }
+        synchronized (sReport) {
+            sReport.setProperty(KEY_HOLDERS, holders.toString());
+            sReport.setProperty(KEY_REUSED_DEX_COUNT, String.valueOf(result.reusedDexCount));
+            sReport.setProperty(KEY_UN_FATAL_COUNT, String.valueOf(result.unFatalThrowable.size()));
+            if (result.fatalThrowable != null) {
+                sReport.setProperty(KEY_FATAL, result.fatalThrowable.toString());
+            }
+        }
+    }
+
+    private static void putReport(String key, long value) {
+        synchronized (sReport) {
+            sReport.setProperty(key, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Types of dexes recorded in manifest, which the next launch is going to load.
+     */
+    private static String obtainManifestTypes(Context context) {
+        File rootDir = new File(context.getFilesDir(), Constants.BOOST_MULTIDEX_DIR_NAME);
+        InstallManifest manifest = InstallManifest.load(context, rootDir);
+        StringBuilder types = new StringBuilder();
+        for (int secondaryNumber = 2; secondaryNumber <= manifest.getDexNumber(); secondaryNumber++) {
+            if (types.length() > 0) {
+                types.append(',');
+            }
+            types.append(manifest.getType(secondaryNumber, Constants.LOAD_TYPE_INVALID));
+        }
+        return types.toString();
+    }
+
+    private static void writeReport(Context context, File reportFile) {
+        Properties report = new Properties();
+        synchronized (sReport) {
+            report.putAll(sReport);
+        }
+        if (sOptimizeStart != 0) {
+            report.setProperty(KEY_OPTIMIZE_NANOS, String.valueOf(System.nanoTime() - sOptimizeStart));
+        }
+        report.setProperty(KEY_TYPES, obtainManifestTypes(context));
+        SimulatorStats.putInto(report);
+
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(reportFile);
+            report.store(outputStream, null);
+        } catch (IOException e) {
+            Monitor.get().logError("Fail to write report " + reportFile.getPath(), e);
+        } finally {
+            Utility.closeQuietly(outputStream);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.bytedance.boost_multidex;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Models of the simulated device, read from system properties prefixed by {@link #PREFIX}, so that
+ * they are handed to every simulated process as they are.
+ *
+ * An operation of a shim, such as dexopt, takes {@code simulator.<op>.fixed} nanoseconds plus
+ * {@code simulator.<op>.nsPerByte} of every byte it moves, and fails by {@code simulator.<op>.failureRate}.
+ * Defaults are rough costs of a middle-end device, the same as those {@link LoadPlanner} starts from.
+ */
+public final class SimulatorConfig {
+    public static final String PREFIX = "simulator.";
+
+    public static final String OP_DEXOPT = "dexopt";
+    public static final String OP_LOAD_ODEX = "loadOdex";
+    public static final String OP_LOAD_DIRECT = "loadDirect";
+    public static final String OP_PREFS_COMMIT = "prefsCommit";
+
+    private static final Map<String, double[]> DEFAULT_MODELS = new HashMap<>();
+
+    static {
+        // fixed nanoseconds, nanoseconds per byte, failure rate
+        DEFAULT_MODELS.put(OP_DEXOPT, new double[]{5_000_000, 200, 0});
+        DEFAULT_MODELS.put(OP_LOAD_ODEX, new double[]{1_000_000, 1, 0});
+        DEFAULT_MODELS.put(OP_LOAD_DIRECT, new double[]{1_000_000, 8, 0});
+        DEFAULT_MODELS.put(OP_PREFS_COMMIT, new double[]{2_000_000, 0, 0});
+    }
+
+    private static final Map<String, Operation> sOperations = new HashMap<>();
+
+    private SimulatorConfig() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @return properties of the simulator, which are passed to a simulated process.
+     */
+    static Properties obtainProperties() {
+        Properties properties = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        return properties;
+    }
+
+    public static synchronized Operation getOperation(String name) {
+        Operation operation = sOperations.get(name);
+        if (operation == null) {
+            double[] model = DEFAULT_MODELS.get(name);
+            if (model == null) {
+                model = new double[3];
+            }
+            operation = new Operation(name, getLong(name + ".fixed", (long) model[0]),
+                    getDouble(name + ".nsPerByte", model[1]), getDouble(name + ".failureRate", model[2]),
+                    getLong("seed", 0) ^ name.hashCode());
+            sOperations.put(name, operation);
+        }
+        return operation;
+    }
+
+    public static final class Operation {
+        private final String mName;
+        private final long mFixedNanos;
+        private final double mNanosPerByte;
+        private final double mFailureRate;
+        private final Random mRandom;
+
+        private Operation(String name, long fixedNanos, double nanosPerByte, double failureRate, long seed) {
+            mName = name;
+            mFixedNanos = fixedNanos;
+            mNanosPerByte = nanosPerByte;
+            mFailureRate = failureRate;
+            mRandom = new Random(seed);
+        }
+
+        /**
+         * Take the time of the operation, which is counted with its bytes in {@link SimulatorStats}.
+         * @throws IOException if the operation fails by its failure rate.
+         */
+        public void perform(long bytes) throws IOException {
+            long nanos = mFixedNanos + (long) (mNanosPerByte * bytes);
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while " + mName);
+            }
+            SimulatorStats.addOperation(mName, bytes, System.nanoTime() - start);
+
+            boolean failed;
+            synchronized (mRandom) {
+                failed = mRandom.nextDouble() < mFailureRate;
+            }
+            if (failed) {
+                SimulatorStats.addFailure(mName);
+                throw new IOException("Simulated failure of " + mName);
+            }
+        }
+    }
+}
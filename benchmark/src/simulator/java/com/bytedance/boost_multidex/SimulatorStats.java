@@ -0,0 +1,53 @@
+package com.bytedance.boost_multidex;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * What happened in a simulated process: operations of shims with bytes they moved, and phases
+ * of installation and optimization timed by {@link android.os.Trace} sections.
+ */
+public final class SimulatorStats {
+    static final String KEY_OP_COUNT = "op.count.";
+    static final String KEY_OP_BYTES = "op.bytes.";
+    static final String KEY_OP_NANOS = "op.nanos.";
+    static final String KEY_OP_FAILURES = "op.failures.";
+    static final String KEY_PHASE_COUNT = "phase.count.";
+    static final String KEY_PHASE_NANOS = "phase.nanos.";
+
+    private static final Map<String, Long> sValues = new TreeMap<>();
+
+    private SimulatorStats() {
+    }
+
+    public static void addOperation(String name, long bytes, long nanos) {
+        add(KEY_OP_COUNT + name, 1);
+        add(KEY_OP_BYTES + name, bytes);
+        add(KEY_OP_NANOS + name, nanos);
+    }
+
+    public static void addFailure(String name) {
+        add(KEY_OP_FAILURES + name, 1);
+    }
+
+    /**
+     * Phases of different dexes, such as "load 2" and "load 3", are summed up as one.
+     */
+    public static void addPhase(String sectionName, long nanos) {
+        String name = sectionName.replaceFirst(" \\d+$", "");
+        add(KEY_PHASE_COUNT + name, 1);
+        add(KEY_PHASE_NANOS + name, nanos);
+    }
+
+    private static synchronized void add(String key, long value) {
+        Long oldValue = sValues.get(key);
+        sValues.put(key, oldValue == null ? value : oldValue + value);
+    }
+
+    static synchronized void putInto(Properties properties) {
+        for (Map.Entry<String, Long> entry : sValues.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package dalvik.system;
+
+/**
+ * Parent is held in its own field, as libcore {@code ClassLoader#parent} is. The one of host is
+ * hidden from reflection, so the library replaces this one to insert a loader before parent.
+ */
+public class BaseDexClassLoader extends ClassLoader {
+    private final DexPathList pathList = new DexPathList();
+    private ClassLoader parent;
+
+    public BaseDexClassLoader(ClassLoader parent) {
+        super(parent);
+        this.parent = parent;
+    }
+
+    /**
+     * @return number of dex elements installed.
+     */
+    public int getDexElementCount() {
+        return pathList.getElementCount();
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> clazz = findLoadedClass(name);
+        if (clazz == null) {
+            try {
+                clazz = parent.loadClass(name);
+            } catch (ClassNotFoundException e) {
+                clazz = findClass(name);
+            }
+        }
+        return clazz;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        Class<?> clazz = pathList.findClass(name);
+        if (clazz == null) {
+            throw new ClassNotFoundException("Didn't find class \"" + name + "\"");
+        }
+        return clazz;
+    }
+}
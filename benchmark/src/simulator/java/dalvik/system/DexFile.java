@@ -0,0 +1,58 @@
+package dalvik.system;
+
+import com.bytedance.boost_multidex.SimulatedDevice;
+import com.bytedance.boost_multidex.SimulatorConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * A dex loaded by the simulated vm, which takes the time of its loading but has no classes.
+ */
+public final class DexFile {
+    private final String mFileName;
+
+    public DexFile(String fileName) {
+        mFileName = fileName;
+    }
+
+    /**
+     * The odex is taken if it exists, otherwise the dex is optimized to it first, as dalvik does.
+     */
+    public static DexFile loadDex(String sourcePathName, String outputPathName, int flags) throws IOException {
+        File sourceFile = new File(sourcePathName);
+        if (!sourceFile.isFile()) {
+            throw new IOException("Unable to open DEX file " + sourcePathName);
+        }
+
+        File optFile = new File(outputPathName);
+        if (optFile.exists()) {
+            SimulatorConfig.getOperation(SimulatorConfig.OP_LOAD_ODEX).perform(optFile.length());
+        } else {
+            SimulatedDevice.dexopt(sourceFile, optFile);
+        }
+        return new DexFile(sourcePathName);
+    }
+
+    public String getName() {
+        return mFileName;
+    }
+
+    public Enumeration<String> entries() {
+        return Collections.emptyEnumeration();
+    }
+
+    public Class<?> loadClass(String name, ClassLoader loader) {
+        return null;
+    }
+
+    public void close() throws IOException {
+    }
+
+    @Override
+    public String toString() {
+        return mFileName;
+    }
+}
@@ -0,0 +1,43 @@
+package dalvik.system;
+
+import java.io.File;
+
+/**
+ * Elements are appended by the library through reflection, as they are on device.
+ */
+final class DexPathList {
+    private Element[] dexElements = new Element[0];
+
+    Class<?> findClass(String name) {
+        for (Element element : dexElements) {
+            if (element.dexFile != null) {
+                Class<?> clazz = element.dexFile.loadClass(name, null);
+                if (clazz != null) {
+                    return clazz;
+                }
+            }
+        }
+        return null;
+    }
+
+    int getElementCount() {
+        return dexElements.length;
+    }
+
+    /**
+     * The constructor of JB MR2 and KK, which the library takes on every version it finds it.
+     */
+    static class Element {
+        private final File dir;
+        private final boolean isDirectory;
+        private final File zip;
+        private final DexFile dexFile;
+
+        public Element(File dir, boolean isDirectory, File zip, DexFile dexFile) {
+            this.dir = dir;
+            this.isDirectory = isDirectory;
+            this.zip = zip;
+            this.dexFile = dexFile;
+        }
+    }
+}
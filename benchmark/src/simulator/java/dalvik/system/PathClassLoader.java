@@ -0,0 +1,7 @@
+package dalvik.system;
+
+public class PathClassLoader extends BaseDexClassLoader {
+    public PathClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+}
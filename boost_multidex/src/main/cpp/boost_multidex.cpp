@@ -7,16 +7,20 @@
 #include <fcntl.h>
 #include <cerrno>
 #include <sys/mman.h>
+#include <sys/stat.h>
 
 #include <cstdio>
 #include <android/log.h>
 #include <dlfcn.h>
 #include <malloc.h>
 #include <memory.h>
+#include <cstddef>
 
 #include <sys/system_properties.h>
 #include <fstream>
 #include <csetjmp>
+#include <ctime>
+#include <pthread.h>
 
 #define LOG_TAG "BOOST_MULTIDEX.NATIVE"
 
@@ -102,14 +106,16 @@ static jmethodID sOpenDexFileMethod;
 
 static jclass sDexClazz;
 static jmethodID sDexConstructor;
+static jmethodID sDexBufferConstructor;
 
 static bool sIsSpecHtc;
 
 bool sIsSetHandler;
 
-bool sSigFlag;
+// per thread, since dexes may be loaded or optimized in several threads at the same time
+static thread_local bool sSigFlag;
 
-static sigjmp_buf sSigJmpBuf;
+static thread_local sigjmp_buf sSigJmpBuf;
 
 static struct sigaction OldSignalAction;
 
@@ -142,6 +148,31 @@ public:
     }
 };
 
+// phases of the last dex loaded directly in current thread, in the order java traces them.
+// start and end times of each are taken from the monotonic clock, as System.nanoTime is.
+enum LoadPhase {
+    kPhaseMap,
+    kPhaseOpen,
+    kPhaseAttach,
+    kPhaseCount
+};
+
+static thread_local int64_t sPhaseTimes[kPhaseCount * 2];
+
+static int64_t NowNanos() {
+    struct timespec ts{};
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+static void BeginPhase(LoadPhase phase) {
+    sPhaseTimes[phase * 2] = NowNanos();
+}
+
+static void EndPhase(LoadPhase phase) {
+    sPhaseTimes[phase * 2 + 1] = NowNanos();
+}
+
 static void* MapFile(const char* file_path, uint32_t *out_file_size) {
     int fd = TEMP_FAILURE_RETRY(open(file_path, O_RDONLY, S_IRUSR));
     if (fd == -1) {
@@ -165,6 +196,175 @@ static void* MapFile(const char* file_path, uint32_t *out_file_size) {
     return ptr;
 }
 
+struct MappedArrayObject {
+    void*        base;          /* page-aligned base address */
+    size_t       base_length;   /* length of mapping */
+    ArrayObject* array;         /* header is in private pages, contents are mapped from file */
+};
+
+// Map [offset, offset + length) of a file as contents of an ArrayObject without copying it.
+// Header of the ArrayObject lives right before contents, in the same private page if there is
+// room, otherwise in an anonymous page reserved in front of the file mapping.
+static bool MapArrayObject(const char *file_path, off_t offset, uint32_t length, MappedArrayObject *out) {
+    int fd = TEMP_FAILURE_RETRY(open(file_path, O_RDONLY, S_IRUSR));
+    if (fd == -1) {
+        ALOGE("fail to open %s", file_path);
+        return false;
+    }
+
+    size_t page_size = static_cast<size_t>(sysconf(_SC_PAGESIZE));
+    off_t aligned_offset = offset & ~static_cast<off_t>(page_size - 1);
+    size_t delta = static_cast<size_t>(offset - aligned_offset);
+    size_t header_size = offsetof(ArrayObject, contents);
+    size_t front_length = delta >= header_size ? 0 : page_size;
+    size_t file_map_length = delta + length;
+    size_t base_length = front_length + file_map_length;
+
+    void *base = mmap(nullptr, base_length, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (base == MAP_FAILED) {
+        ALOGE("fail to reserve %zu bytes, err=%s", base_length, strerror(errno));
+        TEMP_FAILURE_RETRY(close(fd));
+        return false;
+    }
+
+    void *file_ptr = mmap(static_cast<uint8_t *>(base) + front_length, file_map_length,
+                          PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_FIXED, fd, aligned_offset);
+    TEMP_FAILURE_RETRY(close(fd));
+    if (file_ptr == MAP_FAILED) {
+        ALOGE("fail to map %s at %lld, err=%s", file_path, static_cast<long long>(offset), strerror(errno));
+        munmap(base, base_length);
+        return false;
+    }
+
+    madvise(file_ptr, file_map_length, MADV_SEQUENTIAL);
+
+    uint8_t *contents = static_cast<uint8_t *>(file_ptr) + delta;
+    auto *array_object_ptr = reinterpret_cast<ArrayObject *>(contents - header_size);
+    array_object_ptr->clazz = nullptr;
+    array_object_ptr->lock = 0;
+    array_object_ptr->length = length;
+
+    out->base = base;
+    out->base_length = base_length;
+    out->array = array_object_ptr;
+    return true;
+}
+
+static void UnmapArrayObject(MappedArrayObject *mapped) {
+    if (mapped->base != nullptr) {
+        munmap(mapped->base, mapped->base_length);
+        mapped->base = nullptr;
+        mapped->array = nullptr;
+    }
+}
+
+// Memory of the dex being opened in this thread, kept out of locals since they are not reliable
+// after siglongjmp, so that the recovery path releases it as the normal path does.
+static thread_local MappedArrayObject sOpeningMapped;
+static thread_local ArrayObject *sOpeningArray;
+
+static void ReleaseOpeningDex() {
+    UnmapArrayObject(&sOpeningMapped);
+    free(sOpeningArray);
+    sOpeningArray = nullptr;
+}
+
+// Dalvik of SDK 19 looks up classes of a raw dex by its com.android.dex.Dex object.
+// Dex wraps dex memory copied by dalvik for the cookie if it can, which is freed together with
+// the cookie, otherwise it is made of jFileContents, or a copy of dex memory if that is null.
+static bool AttachDexObject(JNIEnv *env, int32_t cookie, uint32_t length, jbyteArray jFileContents) {
+    if (sDexClazz == nullptr || sDexConstructor == nullptr) {
+        return true;
+    }
+
+    DexOrJar* dexOrJar = reinterpret_cast<DexOrJar *>(cookie);
+    jobject local_dex_object = nullptr;
+    if (sDexBufferConstructor != nullptr && dexOrJar->pDexMemory != nullptr) {
+        jobject buffer = env->NewDirectByteBuffer(dexOrJar->pDexMemory, length);
+        if (buffer != nullptr) {
+            local_dex_object = env->NewObject(sDexClazz, sDexBufferConstructor, buffer);
+        }
+        if (env->ExceptionCheck() == JNI_TRUE) {
+            env->ExceptionClear();
+            local_dex_object = nullptr;
+        }
+    }
+
+    if (local_dex_object == nullptr) {
+        if (jFileContents == nullptr) {
+            if (dexOrJar->pDexMemory == nullptr) {
+                ALOGE("no dex memory to make dex object");
+                return false;
+            }
+            jFileContents = env->NewByteArray(length);
+            if (env->ExceptionCheck() == JNI_TRUE) {
+                return false;
+            }
+            env->SetByteArrayRegion(jFileContents, 0, length,
+                                    reinterpret_cast<const jbyte *>(dexOrJar->pDexMemory));
+            if (env->ExceptionCheck() == JNI_TRUE) {
+                return false;
+            }
+        }
+        local_dex_object = env->NewObject(sDexClazz, sDexConstructor, jFileContents);
+        if (env->ExceptionCheck() == JNI_TRUE) {
+            return false;
+        }
+    }
+
+    jobject dex_object = env->NewGlobalRef(local_dex_object);
+
+    dexOrJar->pRawDexFile->pDvmDex->dex_object = dex_object;
+    if (sIsSpecHtc) {
+        dexOrJar->pRawDexFile->pDvmDex->dex_object_htc = dex_object;
+    }
+    return true;
+}
+
+// Dalvik copies contents of the array into its own memory, so the array can be freed after it.
+static int32_t OpenDexArrayObject(ArrayObject *array_object_ptr) {
+    uint32_t args[1];
+    args[0] = reinterpret_cast<uint32_t>(array_object_ptr);
+    int32_t cookie = 0;
+    openDexFileBytes(args, &cookie);
+    return cookie;
+}
+
+static bool MapDexFile(const char *file_path, MappedArrayObject *out) {
+    struct stat st{};
+    if (stat(file_path, &st) != 0) {
+        ALOGE("fail to stat %s, err=%s", file_path, strerror(errno));
+        return false;
+    }
+    return MapArrayObject(file_path, 0, static_cast<uint32_t>(st.st_size), out);
+}
+
+static jobject NewDexFileObject(JNIEnv *env, int32_t cookie, jstring jFilePath) {
+    jobject dex_file = env->AllocObject(sDexFileClazz);
+    env->SetIntField(dex_file, sCookieField, cookie); // set mCookie
+    env->SetObjectField(dex_file, sFileNameField, jFilePath); // set mFileName
+    env->SetObjectField(dex_file, sGuardField, env->CallStaticObjectMethod(sCloseGuardClazz, sGuardGetMethod)); // set guard
+    return dex_file;
+}
+
+// Files smaller than this are summed in the calling thread only.
+static constexpr size_t kParallelCheckSumMinSize = 2 * 1024 * 1024;
+static constexpr int kMaxCheckSumThreads = 4;
+
+struct CheckSumChunk {
+    const Bytef* data;
+    size_t       length;
+    uLong        adler;     /* initial value before summing, result after */
+};
+
+static void* SumChunk(void* arg) {
+    CheckSumChunk* chunk = static_cast<CheckSumChunk *>(arg);
+    chunk->adler = adler32(chunk->adler, chunk->data, static_cast<uInt>(chunk->length));
+    return nullptr;
+}
+
+// Same as adler32(0, ptr, file_size) in one pass, but large files are split into page aligned
+// chunks summed by several threads, then merged in order with adler32_combine.
 static int64_t ObtainCheckSum(const char *file_path) {
     uint32_t file_size = 0;
     void *ptr = MapFile(file_path, &file_size);
@@ -172,11 +372,51 @@ static int64_t ObtainCheckSum(const char *file_path) {
         return 0;
     }
 
-    int64_t result = adler32(0, static_cast<const Bytef *>(ptr), static_cast<uInt>(file_size));
+    madvise(ptr, file_size, MADV_SEQUENTIAL);
+    madvise(ptr, file_size, MADV_WILLNEED);
+
+    long cpu_count = sysconf(_SC_NPROCESSORS_ONLN);
+    int chunk_count = 1;
+    if (file_size >= kParallelCheckSumMinSize && cpu_count > 1) {
+        chunk_count = cpu_count < kMaxCheckSumThreads ? static_cast<int>(cpu_count) : kMaxCheckSumThreads;
+    }
+
+    size_t page_size = static_cast<size_t>(sysconf(_SC_PAGESIZE));
+    size_t chunk_size = (file_size / chunk_count + page_size - 1) & ~(page_size - 1);
+
+    CheckSumChunk chunks[kMaxCheckSumThreads];
+    pthread_t threads[kMaxCheckSumThreads];
+    bool started[kMaxCheckSumThreads] = {};
+    size_t offset = 0;
+    int used_count = 0;
+    for (; used_count < chunk_count && offset < file_size; ++used_count) {
+        CheckSumChunk &chunk = chunks[used_count];
+        chunk.data = static_cast<const Bytef *>(ptr) + offset;
+        chunk.length = file_size - offset < chunk_size ? file_size - offset : chunk_size;
+        // keep the initial value 0 of the first chunk, which stored checksums are computed with
+        chunk.adler = used_count == 0 ? 0 : adler32(0L, Z_NULL, 0);
+        offset += chunk.length;
+
+        // the first chunk is summed by the calling thread
+        if (used_count > 0) {
+            started[used_count] = pthread_create(&threads[used_count], nullptr, SumChunk, &chunk) == 0;
+        }
+    }
+
+    SumChunk(&chunks[0]);
+    uLong result = chunks[0].adler;
+    for (int i = 1; i < used_count; ++i) {
+        if (started[i]) {
+            pthread_join(threads[i], nullptr);
+        } else {
+            SumChunk(&chunks[i]);
+        }
+        result = adler32_combine(result, chunks[i].adler, static_cast<z_off_t>(chunks[i].length));
+    }
 
     munmap(ptr, file_size);
 
-    return result;
+    return static_cast<int64_t>(result);
 }
 
 static func_openDexFileBytes findOpenDexFileFunc(JNINativeMethod *func, const char *name,
@@ -251,113 +491,168 @@ Java_com_bytedance_boost_1multidex_BoostNative_loadDirectDex(JNIEnv *env, jclass
                                                              jbyteArray jFileContents) {
     if (sigsetjmp(sSigJmpBuf, 1) != 0) {
         ALOGE("recover and skip crash");
+        ReleaseOpeningDex();
         return nullptr;
     }
 
     ScopedSetSigFlag scoped;
+    memset(sPhaseTimes, 0, sizeof(sPhaseTimes));
 
     // if jFilePath is null, the byte array is from a dex in zip.
     // do not support when both jFilePath and jFileContents are empty.
     int32_t cookie;
-    if (sOpenDexFileMethod != nullptr) {
+    if (openDexFileBytes != nullptr) {
+        uint32_t length;
         if (jFileContents == nullptr) {
-            uint32_t file_size = 0;
+            // the dex file is mapped as contents of an array object, without copying it
+            BeginPhase(kPhaseMap);
             const char *file_path = env->GetStringUTFChars(jFilePath, nullptr);
-            void *ptr = MapFile(file_path, &file_size);
+            bool is_mapped = MapDexFile(file_path, &sOpeningMapped);
             env->ReleaseStringUTFChars(jFilePath, file_path);
-            if (ptr == nullptr) {
-                ALOGE("fail to map file");
+            if (!is_mapped) {
+                ALOGE("fail to map dex file");
                 return nullptr;
             }
+            EndPhase(kPhaseMap);
 
-            jFileContents = env->NewByteArray(file_size);
-            CHECK_EXCEPTION_AND_EXE_ABORT("fail to new bytes", munmap(ptr, file_size));
-
-            env->SetByteArrayRegion(jFileContents, 0, file_size, static_cast<const jbyte *>(ptr));
+            length = sOpeningMapped.array->length;
+            BeginPhase(kPhaseOpen);
+            cookie = OpenDexArrayObject(sOpeningMapped.array);
+            EndPhase(kPhaseOpen);
+            UnmapArrayObject(&sOpeningMapped);
+        } else {
+            BeginPhase(kPhaseMap);
+            length = static_cast<uint32_t>(env->GetArrayLength(jFileContents));
+            size_t header_size = offsetof(ArrayObject, contents);
+            sOpeningArray = static_cast<ArrayObject *>(malloc(header_size + length));
+            ArrayObject *array_object_ptr = sOpeningArray;
+            if (array_object_ptr == nullptr) {
+                ALOGE("fail to alloc array object for jFileContents");
+                return nullptr;
+            }
+            array_object_ptr->clazz = nullptr;
+            array_object_ptr->lock = 0;
+            array_object_ptr->length = length;
+            env->GetByteArrayRegion(jFileContents, 0, length,
+                                    reinterpret_cast<jbyte *>(array_object_ptr->contents));
+            CHECK_EXCEPTION_AND_EXE_ABORT("fail to get bytes", ReleaseOpeningDex());
+            EndPhase(kPhaseMap);
+
+            BeginPhase(kPhaseOpen);
+            cookie = OpenDexArrayObject(array_object_ptr);
+            EndPhase(kPhaseOpen);
+            ReleaseOpeningDex();
+        }
+        CHECK_EXCEPTION_AND_ABORT("fail to open dex file bytes");
 
-            munmap(ptr, file_size);
-            CHECK_EXCEPTION_AND_ABORT("fail to set bytes");
+        BeginPhase(kPhaseAttach);
+        if (!AttachDexObject(env, cookie, length, jFileContents)) {
+            ALOGE("fail to attach dex object");
+            return nullptr;
         }
-        cookie = env->CallStaticIntMethod(sDexFileClazz, sOpenDexFileMethod, jFileContents);
-        CHECK_EXCEPTION_AND_ABORT("fail to call open dex file bytes method");
     } else {
-        uint32_t args[1];
-        ArrayObject *array_object_ptr;
-        uint32_t length;
+        BeginPhase(kPhaseMap);
         if (jFileContents == nullptr) {
             uint32_t file_size = 0;
             const char *file_path = env->GetStringUTFChars(jFilePath, nullptr);
             void *ptr = MapFile(file_path, &file_size);
+            env->ReleaseStringUTFChars(jFilePath, file_path);
             if (ptr == nullptr) {
-                ALOGE("fail to map dex file");
+                ALOGE("fail to map file");
                 return nullptr;
             }
-            env->ReleaseStringUTFChars(jFilePath, file_path);
 
-            length = sizeof(ArrayObject) - sizeof(ArrayObject::contents) + file_size;
+            jFileContents = env->NewByteArray(file_size);
+            CHECK_EXCEPTION_AND_EXE_ABORT("fail to new bytes", munmap(ptr, file_size));
 
-            array_object_ptr = static_cast<ArrayObject *>(malloc(sizeof(ArrayObject) - sizeof(ArrayObject::contents) + length));
-            if (array_object_ptr == nullptr) {
-                ALOGE("fail to alloc array object");
-                munmap(ptr, file_size);
-                return nullptr;
-            }
-            array_object_ptr->length = file_size;
-            memcpy(array_object_ptr->contents, ptr, length);
+            env->SetByteArrayRegion(jFileContents, 0, file_size, static_cast<const jbyte *>(ptr));
 
             munmap(ptr, file_size);
-        } else {
-            uint32_t jarray_length = static_cast<uint32_t>(env->GetArrayLength(jFileContents));
-            uint8_t * jarray_ptr = static_cast<uint8_t *>(env->GetPrimitiveArrayCritical(jFileContents, nullptr));
-            length = sizeof(ArrayObject) - sizeof(ArrayObject::contents) + jarray_length;
+            CHECK_EXCEPTION_AND_ABORT("fail to set bytes");
+        }
+        EndPhase(kPhaseMap);
 
-            array_object_ptr = static_cast<ArrayObject *>(malloc(sizeof(ArrayObject) - sizeof(ArrayObject::contents) + length));
-            if (array_object_ptr == nullptr) {
-                ALOGE("fail to alloc array object for jFileContents");
-                return nullptr;
-            }
-            array_object_ptr->length = jarray_length;
-            memcpy(array_object_ptr->contents, jarray_ptr, length);
+        BeginPhase(kPhaseOpen);
+        cookie = env->CallStaticIntMethod(sDexFileClazz, sOpenDexFileMethod, jFileContents);
+        CHECK_EXCEPTION_AND_ABORT("fail to call open dex file bytes method");
+        EndPhase(kPhaseOpen);
+        BeginPhase(kPhaseAttach);
+    }
 
-            env->ReleasePrimitiveArrayCritical(jFileContents, jarray_ptr, 0);
-        }
+    jobject dex_file = NewDexFileObject(env, cookie, jFilePath);
+    EndPhase(kPhaseAttach);
+    return dex_file;
+}
 
-        args[0] = reinterpret_cast<uint32_t>(array_object_ptr);
-        openDexFileBytes(args, &cookie);
+extern "C" JNIEXPORT jobject JNICALL
+Java_com_bytedance_boost_1multidex_BoostNative_loadDirectDexInZip(JNIEnv *env, jclass,
+                                                                  jstring jZipPath,
+                                                                  jlong offset,
+                                                                  jint length) {
+    if (sigsetjmp(sSigJmpBuf, 1) != 0) {
+        ALOGE("recover and skip crash");
+        ReleaseOpeningDex();
+        return nullptr;
+    }
 
-        CHECK_EXCEPTION_AND_ABORT("fail to open dex file bytes");
+    ScopedSetSigFlag scoped;
+    memset(sPhaseTimes, 0, sizeof(sPhaseTimes));
+
+    // the stored dex is mapped from zip directly, without inflating or copying it in java heap.
+    BeginPhase(kPhaseMap);
+    const char *zip_path = env->GetStringUTFChars(jZipPath, nullptr);
+    bool is_mapped = MapArrayObject(zip_path, static_cast<off_t>(offset), static_cast<uint32_t>(length), &sOpeningMapped);
+    env->ReleaseStringUTFChars(jZipPath, zip_path);
+    if (!is_mapped) {
+        ALOGE("fail to map dex in zip");
+        return nullptr;
+    }
+    EndPhase(kPhaseMap);
 
-        if (sDexClazz != nullptr && sDexConstructor != nullptr) {
-            DexOrJar* dexOrJar = reinterpret_cast<DexOrJar *>(cookie);
-            if (jFileContents == nullptr) {
-                jFileContents = env->NewByteArray(length);
-                CHECK_EXCEPTION_AND_ABORT("fail to new array of file bytes");
-                env->SetByteArrayRegion(jFileContents, 0, length,
-                                        reinterpret_cast<const jbyte *>(array_object_ptr->contents));
-                CHECK_EXCEPTION_AND_ABORT("fail to set array of file bytes");
-            }
+    int32_t cookie;
+    if (openDexFileBytes != nullptr) {
+        BeginPhase(kPhaseOpen);
+        cookie = OpenDexArrayObject(sOpeningMapped.array);
+        EndPhase(kPhaseOpen);
+        // dalvik has copied contents into its own memory
+        UnmapArrayObject(&sOpeningMapped);
+        CHECK_EXCEPTION_AND_ABORT("fail to open dex file bytes");
 
-            jobject dex_object = env->NewGlobalRef(
-                    env->NewObject(sDexClazz, sDexConstructor, jFileContents));
-            if (!sIsSpecHtc) {
-                dexOrJar->pRawDexFile->pDvmDex->dex_object = dex_object;
-            } else {
-                dexOrJar->pRawDexFile->pDvmDex->dex_object = dex_object;
-                dexOrJar->pRawDexFile->pDvmDex->dex_object_htc = dex_object;
-            }
+        BeginPhase(kPhaseAttach);
+        if (!AttachDexObject(env, cookie, static_cast<uint32_t>(length), nullptr)) {
+            ALOGE("fail to attach dex object");
+            return nullptr;
         }
+    } else {
+        jbyteArray jFileContents = env->NewByteArray(length);
+        CHECK_EXCEPTION_AND_EXE_ABORT("fail to new bytes", UnmapArrayObject(&sOpeningMapped));
 
-        free(array_object_ptr);
-    }
+        env->SetByteArrayRegion(jFileContents, 0, length, reinterpret_cast<const jbyte *>(sOpeningMapped.array->contents));
+        UnmapArrayObject(&sOpeningMapped);
+        CHECK_EXCEPTION_AND_ABORT("fail to set bytes");
 
-    jobject dex_file = env->AllocObject(sDexFileClazz);
-    env->SetIntField(dex_file, sCookieField, cookie); // set mCookie
-    env->SetObjectField(dex_file, sFileNameField, jFilePath); // set mFileName
-    env->SetObjectField(dex_file, sGuardField, env->CallStaticObjectMethod(sCloseGuardClazz, sGuardGetMethod)); // set guard
+        BeginPhase(kPhaseOpen);
+        cookie = env->CallStaticIntMethod(sDexFileClazz, sOpenDexFileMethod, jFileContents);
+        CHECK_EXCEPTION_AND_ABORT("fail to call open dex file bytes method");
+        EndPhase(kPhaseOpen);
+        BeginPhase(kPhaseAttach);
+    }
 
+    jobject dex_file = NewDexFileObject(env, cookie, nullptr);
+    EndPhase(kPhaseAttach);
     return dex_file;
 }
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_bytedance_boost_1multidex_BoostNative_obtainPhaseTimes(JNIEnv *env, jclass, jlongArray jTimes) {
+    jsize count = env->GetArrayLength(jTimes);
+    if (count > kPhaseCount * 2) {
+        count = kPhaseCount * 2;
+    }
+    env->SetLongArrayRegion(jTimes, 0, count, reinterpret_cast<const jlong *>(sPhaseTimes));
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_bytedance_boost_1multidex_BoostNative_recoverAction(JNIEnv *, jclass) {
@@ -419,26 +714,32 @@ Java_com_bytedance_boost_1multidex_BoostNative_initialize(JNIEnv *env, jclass, j
         ALOGE("fail to get dvm func");
     }
 
-    if (sdkVersion < 19) {
-        sOpenDexFileMethod = env->GetStaticMethodID(sDexFileClazz, "openDexFile", "([B)I");
-        env->ExceptionClear();
-    } else {
+    if (sdkVersion >= 19) {
         // SDK = 19
         clazz = env->FindClass("com/android/dex/Dex"); CHECK_EXCEPTION;
         sDexClazz = static_cast<jclass>(env->NewGlobalRef(clazz)); CHECK_EXCEPTION;
         sDexConstructor = env->GetMethodID(sDexClazz, "<init>", "([B)V"); CHECK_EXCEPTION;
+        // private Dex(ByteBuffer), which lets Dex wrap dex memory of dalvik rather than a copy of it
+        sDexBufferConstructor = env->GetMethodID(sDexClazz, "<init>", "(Ljava/nio/ByteBuffer;)V");
+        env->ExceptionClear();
         sIsSpecHtc = CheckIsSpecHtc();
     }
 
-    if (sOpenDexFileMethod == nullptr) {
-        auto* natives_DexFile = (JNINativeMethod*) dlsym(handler, "dvm_dalvik_system_DexFile");
-        if (natives_DexFile == nullptr) {
+    // native function of DexFile.openDexFile(byte[]) takes an array object mapped from file,
+    // so that dex is not copied into java heap before dalvik copies it.
+    auto* natives_DexFile = (JNINativeMethod*) dlsym(handler, "dvm_dalvik_system_DexFile");
+    if (natives_DexFile != nullptr) {
+        openDexFileBytes = findOpenDexFileFunc(natives_DexFile, "openDexFile", "([B)I");
+    }
+
+    if (openDexFileBytes == nullptr) {
+        if (sdkVersion >= 19) {
             env->ThrowNew(runtimeExceptionClass, "Fail to find DexFile symbols");
             return JNI_FALSE;
         }
-
-        openDexFileBytes = findOpenDexFileFunc(natives_DexFile, "openDexFile", "([B)I");
-        if (openDexFileBytes == nullptr) {
+        ALOGW("fail to find native open dex file, fall back to java method");
+        sOpenDexFileMethod = env->GetStaticMethodID(sDexFileClazz, "openDexFile", "([B)I");
+        if (sOpenDexFileMethod == nullptr) {
             return JNI_FALSE;
         }
     }
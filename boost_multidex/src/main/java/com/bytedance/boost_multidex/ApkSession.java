@@ -0,0 +1,95 @@
+package com.bytedance.boost_multidex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Apk opened at most once during an installation or an optimization, entries of all
+ * secondary dexes are indexed when it is opened. Streams of entries may be obtained from
+ * several threads, and the session must be closed by its creator after all of them are done.
+ */
+class ApkSession implements Closeable {
+    private final File mApkFile;
+
+    private final BufferPool mBufferPool = new BufferPool(Constants.BUFFER_POOL_CAPACITY);
+
+    private ZipIndex mZipIndex;
+
+    private boolean mClosed;
+
+    ApkSession(File apkFile) {
+        mApkFile = apkFile;
+    }
+
+    File getApkFile() {
+        return mApkFile;
+    }
+
+    BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Apk is opened lazily, so that nothing is parsed if all dexes are loaded from cache.
+     */
+    private synchronized ZipIndex ensureOpened() throws IOException {
+        if (mClosed) {
+            throw new IOException("Apk session is closed: " + mApkFile.getPath());
+        }
+
+        if (mZipIndex == null) {
+            mZipIndex = ZipIndex.read(mApkFile);
+            Monitor.get().logInfo("Open apk {}, secondary dex count {}",
+                    mApkFile, mZipIndex.getDexEntryList().size());
+        }
+
+        return mZipIndex;
+    }
+
+    /**
+     * The same as {@link Utility#doZipCheckSum(File)} of apk, but computed when indexing it.
+     */
+    long getCentralDirCrc() throws IOException {
+        return ensureOpened().getCentralDirCrc();
+    }
+
+    /**
+     * @return count of secondary dexes, which are numbered from 2 to count + 1.
+     */
+    int getSecondaryDexCount() throws IOException {
+        return ensureOpened().getDexEntryList().size();
+    }
+
+    /**
+     * @return entry of classes{secondaryNumber}.dex, or null if there is no such dex.
+     */
+    ZipIndex.DexEntry getDexEntry(int secondaryNumber) throws IOException {
+        List<ZipIndex.DexEntry> dexEntryList = ensureOpened().getDexEntryList();
+        int index = secondaryNumber - 2;
+        if (index < 0 || index >= dexEntryList.size()) {
+            return null;
+        }
+        return dexEntryList.get(index);
+    }
+
+    long obtainDataOffset(ZipIndex.DexEntry entry) throws IOException {
+        return ensureOpened().obtainDataOffset(entry);
+    }
+
+    InputStream getInputStream(ZipIndex.DexEntry entry) throws IOException {
+        return ensureOpened().getInputStream(entry, mBufferPool);
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mBufferPool.clear();
+        if (mZipIndex != null) {
+            mZipIndex.close();
+            mZipIndex = null;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.os.Build;
 
 import java.io.File;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Xiaolin(xiaolin.gan@bytedance.com) on 2019/3/25.
@@ -64,6 +65,48 @@ public class BoostMultiDex {
         return result;
     }
 
+    /**
+     * Install secondary dexes in a background thread, while classes only in main dex can be used
+     * at the same time. A class not in installed dexes waits for installation until it is finished,
+     * so it is also safe to use classes of secondary dexes before {@link InstallFuture#awaitInstalled}.
+     */
+    public static InstallFuture installAsync(final Context context, Monitor monitor) {
+        Monitor.init(monitor);
+
+        final Monitor installMonitor = Monitor.get();
+        final InstallFuture future = new InstallFuture(new Callable<Result>() {
+            @Override
+            public Result call() {
+                return install(context, installMonitor);
+            }
+        });
+
+        if (isVMCapable(System.getProperty("java.vm.version"))
+                || Build.VERSION.SDK_INT < Constants.MIN_SDK_VERSION) {
+            // nothing to install, it is done at once
+            future.run();
+            return future;
+        }
+
+        final InstallGate gate = InstallGate.attach(context.getClassLoader(), future);
+        if (gate == null) {
+            installMonitor.logWarning("Install synchronously without gate");
+            future.run();
+            return future;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InstallGate.markInstallWorker();
+                future.run();
+                gate.detach();
+            }
+        }, "BoostMultiDex-Install");
+        thread.start();
+        return future;
+    }
+
     public static boolean isOptimizeProcess(String processName) {
         return Utility.isOptimizeProcess(processName);
     }
@@ -91,10 +134,10 @@ public class BoostMultiDex {
                 }
             }
         }
-        Monitor.get().logInfo("VM with version " + versionString +
-                (isCapable ?
+        Monitor.get().logInfo("VM with version {}{}", versionString,
+                isCapable ?
                         " has support" :
-                        " does not have support"));
+                        " does not have support");
         return isCapable;
     }
 
@@ -24,7 +24,7 @@ final class BoostNative {
             if (Build.VERSION.SDK_INT >= 19) {
                 String vmLibName = (String) getPropertyMethod.invoke(null, "persist.sys.dalvik.vm.lib", null);
                 result.vmLibName = vmLibName;
-                Monitor.get().logInfo("VM lib is " + vmLibName);
+                Monitor.get().logInfo("VM lib is {}", vmLibName);
                 if ("libart.so".equals(vmLibName)) {
                     Monitor.get().logWarning("VM lib is art, skip!");
                     return;
@@ -58,11 +58,22 @@ final class BoostNative {
 
     static native Object loadDirectDex(String fileName, byte[] fileContents);
 
+    /**
+     * Load a dex stored without compression in zip, by mapping it directly.
+     */
+    static native Object loadDirectDexInZip(String zipPath, long offset, int length);
+
     static native long obtainCheckSum(String path);
 
     static native void recoverAction();
 
     static native boolean makeOptDexFile(String filePath, String optFilePath);
 
+    /**
+     * Fill start and end times of phases of the last dex loaded directly in current thread,
+     * which are 0 if a phase is not reached.
+     */
+    static native void obtainPhaseTimes(long[] times);
+
     private static native boolean initialize(int sdkVersion, Class<RuntimeException> runtimeExceptionClass);
 }
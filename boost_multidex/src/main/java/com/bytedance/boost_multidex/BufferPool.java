@@ -0,0 +1,49 @@
+package com.bytedance.boost_multidex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scratch buffers shared by all threads of an installation, so that extracting several
+ * dexes does not allocate a new buffer for every copy and every inflater.
+ * Buffers obtained must not be retained after they are recycled.
+ */
+class BufferPool {
+    private final List<byte[]> mFreeBuffers = new ArrayList<>();
+
+    private final long mCapacity;
+
+    private long mPooledSize;
+
+    BufferPool(long capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return a recycled buffer not shorter than minLength, or a new one if there is none.
+     */
+    synchronized byte[] obtain(int minLength) {
+        for (int i = 0; i < mFreeBuffers.size(); i++) {
+            byte[] buffer = mFreeBuffers.get(i);
+            if (buffer.length >= minLength) {
+                mFreeBuffers.remove(i);
+                mPooledSize -= buffer.length;
+                return buffer;
+            }
+        }
+        return new byte[minLength];
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (buffer == null || mPooledSize + buffer.length > mCapacity) {
+            return;
+        }
+        mFreeBuffers.add(buffer);
+        mPooledSize += buffer.length;
+    }
+
+    synchronized void clear() {
+        mFreeBuffers.clear();
+        mPooledSize = 0;
+    }
+}
@@ -0,0 +1,161 @@
+package com.bytedance.boost_multidex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Classes loaded in a launch and attributed to dexes, written by the class load trace into the root dir.
+ * It only depends on java classes, so that it is also read on host from a pulled file.
+ *
+ * Layout: magic, version, launch time, trace duration, overflow flag, dex count, records of all dexes
+ * from classes.dex, and crc32 of all bytes before it. Each record is the class count, first and last
+ * load time in nanoseconds since the trace started, and the times are -1 if no class is loaded.
+ * Classes not in any secondary dex are attributed to classes.dex.
+ */
+public class ClassLoadProfile {
+    private static final int MAGIC = 0x424d4350;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int RECORD_SIZE = 4 + 8 + 8;
+    private static final int TRAILER_SIZE = 8;
+
+    /**
+     * Wall time in milliseconds when the profile is written.
+     */
+    public final long launchTime;
+
+    /**
+     * Nanoseconds from installation to the end of the trace.
+     */
+    public final long traceDuration;
+
+    /**
+     * True if there are more classes than traced ones.
+     */
+    public final boolean overflow;
+
+    /**
+     * Indexed by dex number - 1.
+     */
+    public final int[] classCounts;
+
+    public final long[] firstLoadTimes;
+
+    public final long[] lastLoadTimes;
+
+    ClassLoadProfile(long launchTime, long traceDuration, boolean overflow,
+                     int[] classCounts, long[] firstLoadTimes, long[] lastLoadTimes) {
+        this.launchTime = launchTime;
+        this.traceDuration = traceDuration;
+        this.overflow = overflow;
+        this.classCounts = classCounts;
+        this.firstLoadTimes = firstLoadTimes;
+        this.lastLoadTimes = lastLoadTimes;
+    }
+
+    public int getDexCount() {
+        return classCounts.length;
+    }
+
+    public static ClassLoadProfile read(File file) throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < HEADER_SIZE + TRAILER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid profile length " + length);
+            }
+            bytes = new byte[(int) length];
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Unknown profile format");
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length - TRAILER_SIZE);
+        if (crc32.getValue() != buffer.getLong(bytes.length - TRAILER_SIZE)) {
+            throw new IOException("Profile is corrupted");
+        }
+
+        long launchTime = buffer.getLong();
+        long traceDuration = buffer.getLong();
+        boolean overflow = buffer.getInt() != 0;
+        int dexCount = buffer.getInt();
+        if (dexCount < 0 || HEADER_SIZE + (long) dexCount * RECORD_SIZE + TRAILER_SIZE != bytes.length) {
+            throw new IOException("Invalid profile dex count " + dexCount);
+        }
+
+        int[] classCounts = new int[dexCount];
+        long[] firstLoadTimes = new long[dexCount];
+        long[] lastLoadTimes = new long[dexCount];
+        for (int i = 0; i < dexCount; i++) {
+            classCounts[i] = buffer.getInt();
+            firstLoadTimes[i] = buffer.getLong();
+            lastLoadTimes[i] = buffer.getLong();
+        }
+        return new ClassLoadProfile(launchTime, traceDuration, overflow, classCounts, firstLoadTimes, lastLoadTimes);
+    }
+
+    /**
+     * Written into a temp file and renamed, so a reader never sees a partial profile.
+     */
+    void write(File file) throws IOException {
+        int dexCount = classCounts.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + dexCount * RECORD_SIZE + TRAILER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(launchTime);
+        buffer.putLong(traceDuration);
+        buffer.putInt(overflow ? 1 : 0);
+        buffer.putInt(dexCount);
+        for (int i = 0; i < dexCount; i++) {
+            buffer.putInt(classCounts[i]);
+            buffer.putLong(firstLoadTimes[i]);
+            buffer.putLong(lastLoadTimes[i]);
+        }
+        byte[] bytes = buffer.array();
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, buffer.position());
+        buffer.putLong(crc32.getValue());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete(); // return status ignored
+            throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                    "\" to \"" + file.getAbsolutePath() + "\"");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("launch time: ").append(launchTime)
+                .append(", duration: ").append(traceDuration)
+                .append(", overflow: ").append(overflow);
+        for (int i = 0; i < classCounts.length; i++) {
+            builder.append(", [").append(i + 1)
+                    .append(" classes: ").append(classCounts[i])
+                    .append(", first: ").append(firstLoadTimes[i])
+                    .append(", last: ").append(lastLoadTimes[i])
+                    .append(']');
+        }
+        return builder.toString();
+    }
+}
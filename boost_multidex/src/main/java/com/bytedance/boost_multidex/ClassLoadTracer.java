@@ -0,0 +1,146 @@
+package com.bytedance.boost_multidex;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dalvik.system.DexFile;
+
+/**
+ * Traces classes loaded by the app class loader after secondary dexes are installed, and attributes
+ * them to the dexes defining them.
+ *
+ * A loader is inserted as the parent of the app class loader, whose {@link #findClass} is only called
+ * when a class is loaded at the first time and not found in boot class path, just before the app class
+ * loader looks up it in dex elements. So a class costs a time stamp and a map entry only once.
+ */
+class ClassLoadTracer {
+    private final ClassLoader mLoader;
+    private final TraceClassLoader mTraceLoader;
+
+    private ClassLoadTracer(ClassLoader loader) {
+        mLoader = loader;
+        mTraceLoader = new TraceClassLoader(loader.getParent());
+    }
+
+    /**
+     * @return null if the tracer fails to be inserted.
+     */
+    static ClassLoadTracer start(ClassLoader loader) {
+        ClassLoadTracer tracer = new ClassLoadTracer(loader);
+        try {
+            Field parentField = Utility.findFieldRecursively(loader.getClass(), "parent");
+            parentField.set(loader, tracer.mTraceLoader);
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to start class load trace", e);
+            return null;
+        }
+        Monitor.get().logInfo("Start class load trace");
+        return tracer;
+    }
+
+    /**
+     * Classes loaded after it are not traced, and the trace loader is removed from the parent chain
+     * even if other loaders are inserted beneath it.
+     */
+    void stop() {
+        mTraceLoader.mStopped = true;
+        try {
+            Utility.unlinkParentLoader(mLoader, mTraceLoader);
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to stop class load trace", e);
+        }
+    }
+
+    /**
+     * Attribute traced classes to secondary dexes, and write them as the profile of this launch.
+     * Classes not in any secondary dex are attributed to the main dex, so it is called after lazy dexes
+     * are all installed, whose dex files are unknown until then.
+     */
+    void writeProfile(File rootDir, List<Object> dexFileList) throws IOException {
+        long duration = System.nanoTime() - mTraceLoader.mStartTime;
+        // classes left after attributing to secondary dexes are mostly in main dex, or not found at all
+        Map<String, Long> restLoadTimeMap = new HashMap<>(mTraceLoader.mLoadTimeMap);
+
+        int dexNumber = dexFileList.size() + 1;
+        int[] classCounts = new int[dexNumber];
+        long[] firstLoadTimes = new long[dexNumber];
+        long[] lastLoadTimes = new long[dexNumber];
+        for (int i = 0; i < dexNumber; i++) {
+            firstLoadTimes[i] = Constants.NO_VALUE;
+            lastLoadTimes[i] = Constants.NO_VALUE;
+        }
+
+        for (int i = 0; i < dexFileList.size(); i++) {
+            Object dexFile = dexFileList.get(i);
+            if (!(dexFile instanceof DexFile)) {
+                continue;
+            }
+            Enumeration<String> entries = ((DexFile) dexFile).entries();
+            while (entries.hasMoreElements()) {
+                Long loadTime = restLoadTimeMap.remove(entries.nextElement());
+                if (loadTime != null) {
+                    // dex files are in dex order from classes2.dex
+                    addLoad(i + 1, loadTime, classCounts, firstLoadTimes, lastLoadTimes);
+                }
+            }
+        }
+
+        for (Long loadTime : restLoadTimeMap.values()) {
+            addLoad(0, loadTime, classCounts, firstLoadTimes, lastLoadTimes);
+        }
+
+        ClassLoadProfile profile = new ClassLoadProfile(System.currentTimeMillis(), duration,
+                mTraceLoader.mOverflow, classCounts, firstLoadTimes, lastLoadTimes);
+        profile.write(new File(rootDir, Constants.CLASS_LOAD_PROFILE_FILENAME));
+        Monitor.get().logInfo("Write class load profile, {}", profile);
+    }
+
+    private static void addLoad(int index, long loadTime, int[] classCounts,
+                                long[] firstLoadTimes, long[] lastLoadTimes) {
+        classCounts[index]++;
+        if (firstLoadTimes[index] == Constants.NO_VALUE || loadTime < firstLoadTimes[index]) {
+            firstLoadTimes[index] = loadTime;
+        }
+        lastLoadTimes[index] = Math.max(lastLoadTimes[index], loadTime);
+    }
+
+    private static class TraceClassLoader extends ClassLoader {
+        /**
+         * Thrown to the app class loader which only ignores it, so it is shared without stack trace.
+         */
+        private static final ClassNotFoundException NOT_FOUND = new ClassNotFoundException() {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+        };
+
+        final ConcurrentHashMap<String, Long> mLoadTimeMap = new ConcurrentHashMap<>();
+        final long mStartTime = System.nanoTime();
+        volatile boolean mOverflow;
+        volatile boolean mStopped;
+
+        TraceClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (mStopped) {
+                throw NOT_FOUND;
+            }
+            if (mLoadTimeMap.size() < Constants.CLASS_LOAD_TRACE_CAPACITY) {
+                mLoadTimeMap.putIfAbsent(name, System.nanoTime() - mStartTime);
+            } else {
+                mOverflow = true;
+            }
+            throw NOT_FOUND;
+        }
+    }
+}
@@ -26,7 +26,17 @@ interface Constants {
 
     long SPACE_MIN_THRESHOLD = 20_000_000L;
 
-    long MEM_THRESHOLD = 128_000_000L;
+    /**
+     * Java heap and system memory left to the app, after holders take their budget.
+     */
+    long JAVA_HEAP_RESERVE = 32_000_000L;
+    long SYSTEM_MEM_RESERVE = 64_000_000L;
+
+    /**
+     * Space and memory reserved for each thread optimizing dexes at the same time.
+     */
+    long OPT_SPACE_PER_THREAD = 50_000_000L;
+    long OPT_MEM_PER_THREAD = 100_000_000L;
 
     /**
      * We look for additional dex files named {@code classes2.dex},
@@ -38,11 +48,49 @@ interface Constants {
     String ZIP_SUFFIX = ".zip";
     String ODEX_SUFFIX = ".odex";
 
+    long PRODUCER_TERMINATION_TIMEOUT = 3_000L;
+
+    long PREEMPT_CHECK_INTERVAL = 50L;
+
+    /**
+     * Work after installation waits for a quiet device between the min and the max delay,
+     * and optimization waits at most the max wait, checking load every interval.
+     */
+    long AFTER_INSTALL_MIN_DELAY = 1_000L;
+    long AFTER_INSTALL_MAX_DELAY = 20_000L;
+    long OPTIMIZE_MAX_WAIT = 30_000L;
+    long OPTIMIZE_DEX_MAX_WAIT = 10_000L;
+    long LOAD_CHECK_INTERVAL = 500L;
+
+    String TEMP_FILE_PREFIX = "tmp-";
+
     String EXTRACTED_NAME_EXT = ".classes";
     String EXTRACTED_SUFFIX = ".dex";
     int MAX_EXTRACT_ATTEMPTS = 3;
     int EXTRACTED_SUFFIX_LENGTH = EXTRACTED_SUFFIX.length();
 
+    String MANIFEST_FILENAME = "boost_multidex.manifest";
+
+    String CLASS_LOAD_PROFILE_FILENAME = "boost_multidex.class_load.prof";
+
+    String CLASS_MAP_FILENAME = "boost_multidex.class_map";
+
+    String LOAD_COST_FILENAME = "boost_multidex.load_cost";
+
+    String INSTALL_TRACE_FILENAME = "boost_multidex.install.trace.json";
+    String OPTIMIZE_TRACE_FILENAME = "boost_multidex.optimize.trace.json";
+
+    /**
+     * Max number of spans traced in an installation or optimization.
+     */
+    int INSTALL_TRACE_CAPACITY = 0x1000;
+
+    /**
+     * Max number of classes traced in a launch, which bounds memory of the trace.
+     */
+    int CLASS_LOAD_TRACE_CAPACITY = 0x10000;
+
+    /* records were kept in preferences before manifest, only used for migration */
     String PREFS_FILE = "boost_multidex.records";
     String KEY_TIME_STAMP = "timestamp";
     String KEY_CRC = "crc";
@@ -57,6 +105,24 @@ interface Constants {
      * Size of reading buffers.
      */
     int BUFFER_SIZE = 0x2000;
+
+    /**
+     * Size of dex header, and size of its leading part from magic to file size.
+     */
+    int DEX_HEADER_SIZE = 0x70;
+    int DEX_HEADER_CHECK_SIZE = 36;
+
+    /**
+     * Size of pooled scratch buffers used when extracting dexes, and the most bytes kept by the pool.
+     */
+    int SCRATCH_BUFFER_SIZE = 0x10000;
+    long BUFFER_POOL_CAPACITY = 0x100000L;
+
+    /**
+     * Size of reading buffer when checksum is computed in java.
+     */
+    int CHECKSUM_BUFFER_SIZE = 0x40000;
+
     /* Keep value away from 0 because it is a too probable time stamp value */
     long NO_VALUE = -1L;
 
@@ -0,0 +1,132 @@
+package com.bytedance.boost_multidex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dalvik.system.DexFile;
+
+/**
+ * Packages of classes in secondary dexes, mapped to the numbers of dexes containing them.
+ * It is recorded from loaded dexes once for an apk, and used to find the dex of a class not installed yet.
+ *
+ * Layout: magic, version, package count, packages each with its name and dex numbers,
+ * and crc32 of all bytes before it.
+ */
+class DexClassMap {
+    private static final int MAGIC = 0x424d434d;
+    private static final int VERSION = 1;
+
+    private final Map<String, int[]> mPackageMap;
+
+    private DexClassMap(Map<String, int[]> packageMap) {
+        mPackageMap = packageMap;
+    }
+
+    /**
+     * @return numbers of dexes which may contain the class, or null if it is in none of secondary dexes.
+     */
+    int[] getDexNumbers(String className) {
+        return mPackageMap.get(obtainPackageName(className));
+    }
+
+    /**
+     * Dexes must be all loaded, and they are in dex order from classes2.dex.
+     */
+    static DexClassMap build(List<Object> dexFileList) {
+        Map<String, int[]> packageMap = new HashMap<>();
+        for (int i = 0; i < dexFileList.size(); i++) {
+            Object dexFile = dexFileList.get(i);
+            int secondaryNumber = i + 2;
+            if (!(dexFile instanceof DexFile)) {
+                throw new IllegalStateException("Dex " + secondaryNumber + " is not loaded");
+            }
+
+            Enumeration<String> entries = ((DexFile) dexFile).entries();
+            while (entries.hasMoreElements()) {
+                String packageName = obtainPackageName(entries.nextElement());
+                int[] dexNumbers = packageMap.get(packageName);
+                if (dexNumbers == null) {
+                    packageMap.put(packageName, new int[]{secondaryNumber});
+                } else if (dexNumbers[dexNumbers.length - 1] != secondaryNumber) {
+                    int[] newDexNumbers = Arrays.copyOf(dexNumbers, dexNumbers.length + 1);
+                    newDexNumbers[dexNumbers.length] = secondaryNumber;
+                    packageMap.put(packageName, newDexNumbers);
+                }
+            }
+        }
+        return new DexClassMap(packageMap);
+    }
+
+    /**
+     * @return null if there is no valid map.
+     */
+    static DexClassMap load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            return read(file);
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to read class map", e);
+            return null;
+        }
+    }
+
+    private static DexClassMap read(File file) throws IOException {
+        ByteBuffer buffer = Utility.readChecksummedFile(file, MAGIC);
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unknown class map format");
+        }
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining()));
+        int packageCount = in.readInt();
+        Map<String, int[]> packageMap = new HashMap<>(Math.max(packageCount * 2, 16));
+        for (int i = 0; i < packageCount; i++) {
+            String packageName = in.readUTF();
+            int[] dexNumbers = new int[in.readUnsignedShort()];
+            for (int j = 0; j < dexNumbers.length; j++) {
+                dexNumbers[j] = in.readUnsignedShort();
+            }
+            packageMap.put(packageName, dexNumbers);
+        }
+
+        if (in.available() != 0) {
+            throw new IOException("Invalid class map length " + buffer.limit());
+        }
+        return new DexClassMap(packageMap);
+    }
+
+    void write(File file) throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytesOut);
+        out.writeInt(mPackageMap.size());
+        for (Map.Entry<String, int[]> entry : mPackageMap.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeShort(entry.getValue().length);
+            for (int dexNumber : entry.getValue()) {
+                out.writeShort(dexNumber);
+            }
+        }
+        out.flush();
+
+        Utility.writeChecksummedFile(file, MAGIC, VERSION, bytesOut.toByteArray());
+        Monitor.get().logInfo("Write class map of {} packages", mPackageMap.size());
+    }
+
+    private static String obtainPackageName(String className) {
+        int index = className.lastIndexOf('.');
+        return index < 0 ? "" : className.substring(0, index);
+    }
+}
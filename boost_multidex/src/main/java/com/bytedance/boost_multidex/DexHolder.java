@@ -1,11 +1,9 @@
 package com.bytedance.boost_multidex;
 
-import android.content.SharedPreferences;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import dalvik.system.DexFile;
 
@@ -15,99 +13,156 @@ import dalvik.system.DexFile;
 abstract class DexHolder {
     File mFile;
 
+    /**
+     * Dex file loaded by {@link #toDexListElement}, kept for the class map and the class load trace.
+     */
+    Object mDexFile;
+
+    /**
+     * Operations of {@link LoadPlanner} producing and loading the holder, and their costs in nanoseconds.
+     * Load cost is NO_VALUE until the holder is loaded.
+     */
+    int mProduceOp = LoadPlanner.OP_NONE;
+    long mProduceCost;
+    int mLoadOp = LoadPlanner.OP_NONE;
+    long mLoadCost = Constants.NO_VALUE;
+
     abstract Object toDexFile();
 
+    /**
+     * @return operation of {@link LoadPlanner} which {@link #toDexFile} is going to do.
+     */
+    abstract int getLoadOp();
+
     protected Object toDexListElement(DexLoader.ElementConstructor elementConstructor) throws Exception {
-        Object dexFile = toDexFile();
-        return dexFile == null ? null : elementConstructor.newInstance(mFile, dexFile);
+        Object dexFile = toTracedDexFile();
+        mDexFile = dexFile;
+        return dexFile == null ? null : newTracedElement(elementConstructor, mFile, dexFile);
     }
 
-    abstract DexHolder toFasterHolder(SharedPreferences preferences);
+    Object toTracedDexFile() {
+        int loadOp = getLoadOp();
+        InstallTracer.Span span = InstallTracer.begin(LoadPlanner.obtainOpName(loadOp));
+        try {
+            return toDexFile();
+        } finally {
+            span.end();
+            if (loadOp == LoadPlanner.OP_LOAD_DIRECT) {
+                InstallTracer.addNativeSpans();
+            }
+        }
+    }
 
-    abstract StoreInfo getInfo();
+    static Object newTracedElement(DexLoader.ElementConstructor elementConstructor, File file, Object dexFile)
+            throws Exception {
+        InstallTracer.Span span = InstallTracer.begin("new element");
+        try {
+            return elementConstructor.newInstance(file, dexFile);
+        } finally {
+            span.end();
+        }
+    }
 
+    /**
+     * Records of the faster holder are only put into the manifest, it is up to the caller to commit it.
+     */
+    abstract DexHolder toFasterHolder(InstallManifest manifest);
 
-    private static void putTypeInfo(SharedPreferences.Editor editor, int secondaryNumber, int type) {
-        editor.putInt(Constants.KEY_DEX_OBJ_TYPE + secondaryNumber, type);
-    }
+    abstract StoreInfo getInfo();
 
-    private static void putZipOptInfo(SharedPreferences.Editor editor, int secondaryNumber, File zipFile) throws IOException {
-        String keyCheckSum = Constants.KEY_DEX_CHECKSUM;
 
+    private static void putZipOptInfo(InstallManifest manifest, int secondaryNumber, File zipFile) throws IOException {
         long checkSum = Utility.doZipCheckSum(zipFile);
-        editor.putLong(keyCheckSum + secondaryNumber, checkSum);
-
-        String keyTime = Constants.KEY_DEX_TIME;
         long time = zipFile.lastModified();
-        editor.putLong(keyTime + secondaryNumber, time);
+        manifest.putDexInfo(secondaryNumber, checkSum, time);
 
-        Monitor.get().logInfo("Put z key " + (keyCheckSum + keyTime + secondaryNumber)
-                + " checksum=" + checkSum + ", time=" + time);
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Put z info " + secondaryNumber
+                    + " checksum=" + checkSum + ", time=" + time);
+        }
     }
 
-    private static void putDexFileInfo(SharedPreferences.Editor editor, int secondaryNumber, File file) throws IOException {
-        String keyCheckSum = Constants.KEY_DEX_CHECKSUM;
-
+    private static void putDexFileInfo(InstallManifest manifest, int secondaryNumber, File file) throws IOException {
         long checkSum = Utility.doFileCheckSum(file);
-        editor.putLong(keyCheckSum + secondaryNumber, checkSum);
-
-        String keyTime = Constants.KEY_DEX_TIME;
         long time = file.lastModified();
-        editor.putLong(keyTime + secondaryNumber, time);
+        manifest.putDexInfo(secondaryNumber, checkSum, time);
 
-        Monitor.get().logInfo("Put f key " + (keyCheckSum + keyTime + secondaryNumber)
-                + " checksum=" + checkSum + ", time=" + time);
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Put f info " + secondaryNumber
+                    + " checksum=" + checkSum + ", time=" + time);
+        }
     }
 
-    private static void putDexOptInfo(SharedPreferences.Editor editor, int secondaryNumber, File optFile) throws IOException {
-        String keyCheckSum = Constants.KEY_ODEX_CHECKSUM;
-
+    private static void putDexOptInfo(InstallManifest manifest, int secondaryNumber, File optFile) throws IOException {
         long checkSum = optFile.length();
-        editor.putLong(keyCheckSum + secondaryNumber, checkSum);
-
-        String keyTime = Constants.KEY_ODEX_TIME;
         long time = optFile.lastModified();
-        editor.putLong(keyTime + secondaryNumber, time);
+        manifest.putOdexInfo(secondaryNumber, checkSum, time);
 
-        Monitor.get().logInfo("Put o key " + (keyCheckSum + keyTime + secondaryNumber)
-                + " checksum=" + checkSum + ", time=" + time);
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Put o info " + secondaryNumber
+                    + " checksum=" + checkSum + ", time=" + time);
+        }
     }
 
-    static DexHolder obtainValidDexBuffer(SharedPreferences preferences, int secondaryNumber, File validDexFile, File optDexFile)
+    /**
+     * Records are only put into the manifest, it is up to the caller to commit it.
+     */
+    static DexHolder obtainValidDexBuffer(InstallManifest manifest, int secondaryNumber, File validDexFile, File optDexFile)
             throws IOException {
-        SharedPreferences.Editor editor = preferences.edit();
-        putTypeInfo(editor, secondaryNumber, Constants.LOAD_TYPE_DEX_BUF);
-        putDexFileInfo(editor, secondaryNumber, validDexFile);
-        editor.commit();
-
+        manifest.putType(secondaryNumber, Constants.LOAD_TYPE_DEX_BUF);
+        putDexFileInfo(manifest, secondaryNumber, validDexFile);
         return new DexHolder.DexBuffer(secondaryNumber, validDexFile, optDexFile);
     }
 
-    static DexHolder obtainValidForceDexOpt(SharedPreferences preferences, int secondaryNumber, File dexFile, File optDexFile,
-                                            ZipFile apkZipFile, ZipEntry dexFileEntry) throws IOException {
-        File validDexFile = Utility.obtainEntryFileInZip(apkZipFile, dexFileEntry, dexFile);
-        SharedPreferences.Editor editor = preferences.edit();
-        putTypeInfo(editor, secondaryNumber, Constants.LOAD_TYPE_DEX_OPT);
-        putDexFileInfo(editor, secondaryNumber, validDexFile);
-        editor.commit();
-        return new DexHolder.DexOpt(secondaryNumber, validDexFile, optDexFile, true);
+    static DexHolder obtainValidForceDexOpt(InstallManifest manifest, int secondaryNumber, File dexFile, File optDexFile,
+                                            ApkSession apkSession, ZipIndex.DexEntry dexFileEntry) throws IOException {
+        File validDexFile = Utility.obtainEntryFileInZip(apkSession, dexFileEntry, dexFile);
+        manifest.putType(secondaryNumber, Constants.LOAD_TYPE_DEX_OPT);
+        putDexFileInfo(manifest, secondaryNumber, validDexFile);
+        DexHolder dexHolder = new DexHolder.DexOpt(secondaryNumber, validDexFile, optDexFile, true);
+        dexHolder.mProduceOp = LoadPlanner.OP_EXTRACT;
+        return dexHolder;
     }
 
-    static DexHolder obtainValidDexOpt(SharedPreferences preferences, int secondaryNumber, File validDexFile, File optDexFile) throws IOException {
-        SharedPreferences.Editor editor = preferences.edit();
-        putTypeInfo(editor, secondaryNumber, Constants.LOAD_TYPE_DEX_OPT);
-        putDexOptInfo(editor, secondaryNumber, optDexFile);
-        editor.commit();
+    static DexHolder obtainValidDexOpt(InstallManifest manifest, int secondaryNumber, File validDexFile, File optDexFile) throws IOException {
+        manifest.putType(secondaryNumber, Constants.LOAD_TYPE_DEX_OPT);
+        putDexOptInfo(manifest, secondaryNumber, optDexFile);
         return new DexHolder.DexOpt(secondaryNumber, validDexFile, optDexFile, false);
     }
 
-    static DexHolder.ZipOpt obtainValidZipDex(SharedPreferences preferences, int secondaryNumber, File validZipFile, File validZipOptFile, ZipFile apkZipFile, ZipEntry dexFileEntry) throws IOException {
-        Utility.obtainZipForEntryFileInZip(apkZipFile, dexFileEntry, validZipFile);
-        SharedPreferences.Editor editor = preferences.edit();
-        putTypeInfo(editor, secondaryNumber, Constants.LOAD_TYPE_ZIP_OPT);
-        putZipOptInfo(editor, secondaryNumber, validZipFile);
-        editor.commit();
-        return new DexHolder.ZipOpt(secondaryNumber, validZipFile, validZipOptFile);
+    static DexHolder.ZipOpt obtainValidZipDex(InstallManifest manifest, int secondaryNumber, File validZipFile, File validZipOptFile, ApkSession apkSession, ZipIndex.DexEntry dexFileEntry) throws IOException {
+        InstallTracer.Span span = InstallTracer.begin("store zip");
+        try {
+            Utility.obtainZipForEntryFileInZip(apkSession, dexFileEntry, validZipFile);
+        } finally {
+            span.end();
+        }
+        manifest.putType(secondaryNumber, Constants.LOAD_TYPE_ZIP_OPT);
+        putZipOptInfo(manifest, secondaryNumber, validZipFile);
+        DexHolder.ZipOpt dexHolder = new DexHolder.ZipOpt(secondaryNumber, validZipFile, validZipOptFile);
+        dexHolder.mProduceOp = LoadPlanner.OP_STORE_ZIP;
+        return dexHolder;
+    }
+
+    /**
+     * A stored and zipaligned dex is mapped from apk directly when loading, others are inflated into bytes.
+     * @return true if ApkBuffer of the entry maps dex from apk, rather than reads it into java heap.
+     */
+    static boolean isMappedFromApk(ApkSession apkSession, ZipIndex.DexEntry dexEntry) throws IOException {
+        return dexEntry.method == ZipIndex.METHOD_STORED && apkSession.obtainDataOffset(dexEntry) % 4 == 0;
+    }
+
+    static DexHolder obtainApkBuffer(int secondaryNumber, ApkSession apkSession, ZipIndex.DexEntry dexEntry,
+                                     File dexFile, File optDexFile) throws IOException {
+        if (isMappedFromApk(apkSession, dexEntry)) {
+            return new DexHolder.ApkBuffer(secondaryNumber, apkSession.getApkFile(),
+                    apkSession.obtainDataOffset(dexEntry), (int) dexEntry.size, dexFile, optDexFile);
+        }
+
+        byte[] bytes = Utility.obtainEntryBytesInZip(apkSession, dexEntry);
+        DexHolder dexHolder = new DexHolder.ApkBuffer(secondaryNumber, bytes, dexFile, optDexFile);
+        dexHolder.mProduceOp = LoadPlanner.OP_INFLATE;
+        return dexHolder;
     }
 
     static class ZipOpt extends DexHolder {
@@ -131,7 +186,13 @@ abstract class DexHolder {
         }
 
         @Override
-        public DexHolder toFasterHolder(SharedPreferences preferences) {
+        int getLoadOp() {
+            // odex is only checked by its existence, as DexFile.loadDex does
+            return mOptFile.exists() ? LoadPlanner.OP_LOAD_ODEX : LoadPlanner.OP_DEXOPT;
+        }
+
+        @Override
+        public DexHolder toFasterHolder(InstallManifest manifest) {
             return null;
         }
 
@@ -180,7 +241,12 @@ abstract class DexHolder {
         }
 
         @Override
-        public DexHolder toFasterHolder(SharedPreferences preferences) {
+        int getLoadOp() {
+            return mForceOpt ? LoadPlanner.OP_DEXOPT : LoadPlanner.OP_LOAD_ODEX;
+        }
+
+        @Override
+        public DexHolder toFasterHolder(InstallManifest manifest) {
             return null;
         }
 
@@ -220,15 +286,33 @@ abstract class DexHolder {
         }
 
         @Override
-        public DexHolder toFasterHolder(SharedPreferences preferences) {
+        int getLoadOp() {
+            return LoadPlanner.OP_LOAD_DIRECT;
+        }
+
+        @Override
+        public DexHolder toFasterHolder(InstallManifest manifest) {
+            // odex is written to a temp file, so that a half-written one is never taken if the process dies
+            File tmpOptFile = new File(mOptFile.getParentFile(), Constants.TEMP_FILE_PREFIX + mOptFile.getName());
             try {
-                if (!BoostNative.isSupportFastLoad() || !BoostNative.makeOptDexFile(mFile.getPath(), mOptFile.getPath())) {
-                    Monitor.get().logWarning("Opt dex in origin way");
-                    DexFile.loadDex(mFile.getPath(), mOptFile.getPath(), 0).close();
+                Utility.deleteFiles(tmpOptFile);
+                InstallTracer.Span span = InstallTracer.begin("dexopt");
+                try {
+                    if (!BoostNative.isSupportFastLoad() || !BoostNative.makeOptDexFile(mFile.getPath(), tmpOptFile.getPath())) {
+                        Monitor.get().logWarning("Opt dex in origin way");
+                        DexFile.loadDex(mFile.getPath(), tmpOptFile.getPath(), 0).close();
+                    }
+                } finally {
+                    span.end();
                 }
-                return obtainValidDexOpt(preferences, mIndex, mFile, mOptFile);
+                if (!tmpOptFile.renameTo(mOptFile)) {
+                    throw new IOException("Failed to rename \"" + tmpOptFile.getAbsolutePath() +
+                            "\" to \"" + mOptFile.getAbsolutePath() + "\"");
+                }
+                return obtainValidDexOpt(manifest, mIndex, mFile, mOptFile);
             } catch (IOException e) {
                 Monitor.get().logError("Fail to opt dex finally", e);
+                Utility.deleteFiles(tmpOptFile);
                 return null;
             }
         }
@@ -252,9 +336,42 @@ abstract class DexHolder {
         private byte[] mBytes;
         private File mOptFile;
 
+        private File mApkFile;
+        private long mOffset;
+        private int mLength;
+
+        private ApkSession mApkSession;
+        private ZipIndex.DexEntry mDexEntry;
+
         ApkBuffer(int index, byte[] bytes, File file, File optFile) {
             this.mIndex = index;
             this.mBytes = bytes;
+            this.mLength = bytes.length;
+            this.mFile = file;
+            this.mOptFile = optFile;
+        }
+
+        /**
+         * Dex is stored in apk from offset without compression.
+         */
+        ApkBuffer(int index, File apkFile, long offset, int length, File file, File optFile) {
+            this.mIndex = index;
+            this.mApkFile = apkFile;
+            this.mOffset = offset;
+            this.mLength = length;
+            this.mFile = file;
+            this.mOptFile = optFile;
+        }
+
+        /**
+         * Dex is read from entry only when it is needed, and streamed to file directly when
+         * being faster, so that no bytes of the whole dex are allocated. The session must be
+         * still opened then.
+         */
+        ApkBuffer(int index, ApkSession apkSession, ZipIndex.DexEntry dexEntry, File file, File optFile) {
+            this.mIndex = index;
+            this.mApkSession = apkSession;
+            this.mDexEntry = dexEntry;
             this.mFile = file;
             this.mOptFile = optFile;
         }
@@ -262,28 +379,56 @@ abstract class DexHolder {
         @Override
         public Object toDexFile() {
             try {
+                if (mDexEntry != null) {
+                    return BoostNative.loadDirectDex(null, Utility.obtainEntryBytesInZip(mApkSession, mDexEntry));
+                }
+                if (mApkFile != null) {
+                    return BoostNative.loadDirectDexInZip(mApkFile.getPath(), mOffset, mLength);
+                }
                 return BoostNative.loadDirectDex(null, mBytes);
-            } catch (Exception e) {
+            } catch (Throwable e) {
                 Monitor.get().logError("Fail to create DexFile: " + toString(), e);
                 Result.get().unFatalThrowable.add(e);
                 return null;
             }
         }
 
+        @Override
+        int getLoadOp() {
+            return LoadPlanner.OP_LOAD_DIRECT;
+        }
+
         @Override
         public Object toDexListElement(DexLoader.ElementConstructor elementConstructor) throws Exception {
-            Object dexFile = toDexFile();
+            Object dexFile = toTracedDexFile();
+            mDexFile = dexFile;
             if (dexFile == null) {
                 return null;
             }
-            return elementConstructor.newInstance(null, dexFile);
+            Object element = newTracedElement(elementConstructor, null, dexFile);
+            // bytes are copied by native loading, so they are not kept on heap for the whole process
+            mBytes = null;
+            return element;
         }
 
         @Override
-        public DexHolder toFasterHolder(SharedPreferences preferences) {
-            if (Utility.storeBytesToFile(mBytes, mFile)) {
+        public DexHolder toFasterHolder(InstallManifest manifest) {
+            if (mDexEntry != null) {
+                try {
+                    File validDexFile = Utility.obtainEntryFileInZip(mApkSession, mDexEntry, mFile);
+                    return DexHolder.obtainValidDexBuffer(manifest, mIndex, validDexFile, mOptFile);
+                } catch (IOException e) {
+                    Monitor.get().logError("fail to get dex buffer", e);
+                    return null;
+                }
+            }
+
+            boolean isStored = mApkFile != null
+                    ? Utility.storeFileRegionToFile(mApkFile, mOffset, mLength, mFile)
+                    : mBytes != null && Utility.storeBytesToFile(mBytes, mFile);
+            if (isStored) {
                 try {
-                    return DexHolder.obtainValidDexBuffer(preferences, mIndex, mFile, mOptFile);
+                    return DexHolder.obtainValidDexBuffer(manifest, mIndex, mFile, mOptFile);
                 } catch (IOException e) {
                     Monitor.get().logError("fail to get dex buffer", e);
                     return null;
@@ -303,7 +448,11 @@ abstract class DexHolder {
             return super.toString() + ", index: " + mIndex
                     + ", [file: " + mFile.getPath() + ", size: " + mFile.length()
                     + "], [opt file: " + mOptFile + ", size: " + mOptFile.length()
-                    + "], bytes len: " + (mBytes == null ? null : mBytes.length);
+                    + "], " + (mDexEntry != null
+                        ? "entry: " + mDexEntry
+                        : mApkFile != null
+                        ? "apk offset: " + mOffset + ", len: " + mLength
+                        : "bytes len: " + mLength);
         }
     }
 
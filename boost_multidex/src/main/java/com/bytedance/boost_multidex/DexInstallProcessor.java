@@ -1,89 +1,171 @@
 package com.bytedance.boost_multidex;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.os.Build;
 import android.os.Environment;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Xiaolin(xiaolin.gan@bytedance.com) on 2019/3/26.
  */
 class DexInstallProcessor {
-    private SharedPreferences mPreferences;
-    private boolean mDoCheckSum;
+    private InstallManifest mManifest;
+    private ExecutorService mProducer;
+    private ApkSession mApkSession;
+    private LazyInstaller mLazyInstaller;
+    private Context mContext;
+    private MemoryBudget mMemoryBudget;
+    private LoadPlanner mLoadPlanner;
+    private boolean mNeedClassMap;
+
+    /**
+     * Dex files of secondary dexes in dex order from classes2.dex, a lazy one is put once it is loaded.
+     * Only they are kept after installation, rather than holders which may keep the whole dex in bytes.
+     */
+    private List<Object> mDexFileList;
+
+    /**
+     * Cached dex files only checked by structure while installing, whose checksums are verified later.
+     */
+    private final Set<Integer> mDeferredCheckSet = Collections.synchronizedSet(new TreeSet<Integer>());
 
     DexInstallProcessor() {
-        Random random = new Random();
-        mDoCheckSum = random.nextInt(3) == 0;
-        Monitor.get().logInfo("Do checksum " + mDoCheckSum);
     }
 
     void doInstallation(final Context mainContext, File sourceApk, Result result) throws Exception {
+        InstallTracer.start(Monitor.get().isEnableInstallTrace());
+        InstallTracer.Span installSpan = InstallTracer.begin("install");
+
         File filesDir = mainContext.getFilesDir();
         if (!filesDir.exists()) {
             Utility.mkdirChecked(filesDir);
         }
         Utility.clearDirFiles(new File(filesDir.getParent(), Constants.CODE_CACHE_SECONDARY_FOLDER_NAME));
 
-        File rootDir = Utility.ensureDirCreated(filesDir, Constants.BOOST_MULTIDEX_DIR_NAME);
+        final File rootDir = Utility.ensureDirCreated(filesDir, Constants.BOOST_MULTIDEX_DIR_NAME);
         File dexDir = Utility.ensureDirCreated(rootDir, Constants.DEX_DIR_NAME);
         File optDexDir = Utility.ensureDirCreated(rootDir, Constants.ODEX_DIR_NAME);
         File zipDir = Utility.ensureDirCreated(rootDir, Constants.ZIP_DIR_NAME);
 
         result.setDirs(filesDir, rootDir, dexDir, optDexDir, zipDir);
 
+        InstallTracer.Span span = InstallTracer.begin("wait lock");
         Locker prepareLocker = new Locker(new File(rootDir, Constants.LOCK_PREPARE_FILENAME));
-        prepareLocker.lock();
-
         Locker locker = new Locker(new File(rootDir, Constants.LOCK_INSTALL_FILENAME));
+        try {
+            prepareLocker.lock();
 
-        locker.lock();
-        prepareLocker.close();
+            locker.lock();
+            prepareLocker.close();
+        } finally {
+            span.end();
+        }
 
         List<DexHolder> dexHolderList;
         try {
-            mPreferences = mainContext.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
+            span = InstallTracer.begin("load manifest");
+            try {
+                mManifest = InstallManifest.load(mainContext, rootDir);
+                mLoadPlanner = LoadPlanner.load(rootDir);
+            } finally {
+                span.end();
+            }
+            mContext = mainContext;
 
             result.freeSpaceBefore = Environment.getDataDirectory().getFreeSpace();
 
-            dexHolderList = obtainDexObjectList(sourceApk, rootDir, dexDir, optDexDir, zipDir, result);
+            mApkSession = new ApkSession(sourceApk);
+
+            List<Future<DexHolder>> dexHolderFutureList = obtainDexObjectList(mainContext, sourceApk, rootDir, dexDir, optDexDir, zipDir, result);
 
-            installSecondaryDexes(mainContext.getClassLoader(), dexHolderList);
+            dexHolderList = installSecondaryDexes(mainContext.getClassLoader(), dexHolderFutureList, rootDir, result);
             // Some IOException causes may be fixed by a clean extraction.
         } catch (Throwable e) {
             Monitor.get().logWarning("Failed to install extracted secondary dex files", e);
             throw e;
         } finally {
+            finishInstallation();
             locker.close();
+            installSpan.end();
+        }
+
+        if (InstallTracer.isEnabled()) {
+            Monitor.get().doAfterInstall(new Runnable() {
+                @Override
+                public void run() {
+                    InstallTracer.write(new File(rootDir, Constants.INSTALL_TRACE_FILENAME));
+                }
+            });
         }
 
+        scheduleDeferredCheck(mainContext, rootDir, dexDir, optDexDir);
+
+        ClassLoadTracer classLoadTracer = null;
+        if (Monitor.get().isEnableClassLoadTrace()) {
+            classLoadTracer = ClassLoadTracer.start(mainContext.getClassLoader());
+        }
+
+        boolean needOptimize = false;
         long freeSpaceAfter = Environment.getDataDirectory().getFreeSpace();
         result.freeSpaceAfter = freeSpaceAfter;
         if (freeSpaceAfter < Constants.SPACE_MIN_THRESHOLD) {
-            Monitor.get().logWarning("Free space is too small: " + freeSpaceAfter
-                    + ", compare to " + Constants.SPACE_MIN_THRESHOLD);
+            Monitor.get().logWarning("Free space is too small: {}, compare to {}",
+                    freeSpaceAfter, Constants.SPACE_MIN_THRESHOLD);
         } else {
-            for (final DexHolder dexHolder : dexHolderList) {
+            for (DexHolder dexHolder : dexHolderList) {
                 if (!(dexHolder instanceof DexHolder.ZipOpt || dexHolder instanceof DexHolder.DexOpt)) {
-                    Monitor.get().doAfterInstall(new Runnable() {
-                        @Override
-                        public void run() {
-                            OptimizeService.startOptimizeService(mainContext);
-                        }
-                    });
-                    return;
+                    needOptimize = true;
+                    break;
                 }
             }
         }
+
+        if (needOptimize || mLazyInstaller != null || mNeedClassMap || classLoadTracer != null) {
+            final boolean startOptimize = needOptimize;
+            final LazyInstaller lazyInstaller = mLazyInstaller;
+            final boolean needClassMap = mNeedClassMap;
+            final List<Object> dexFileList = mDexFileList;
+            final ClassLoadTracer tracer = classLoadTracer;
+            Monitor.get().doAfterInstall(new Runnable() {
+                @Override
+                public void run() {
+                    // classes are traced until a while after the main thread is idle, when startup is finished
+                    if (tracer != null) {
+                        tracer.stop();
+                    }
+
+                    // lazy dexes are all installed before optimizing process may replace their files
+                    if (lazyInstaller != null) {
+                        lazyInstaller.installAll();
+                    } else if (needClassMap) {
+                        recordClassMap(rootDir, dexFileList);
+                    }
+
+                    // dex files of lazy dexes are all known now, so their classes are attributed to them
+                    if (tracer != null) {
+                        writeClassLoadProfile(tracer, rootDir, dexFileList);
+                    }
+
+                    if (startOptimize) {
+                        OptimizeService.startOptimizeService(mainContext);
+                    }
+                }
+            });
+        }
     }
 
     void doInstallationInOptProcess(Context context, File apkFile) throws Exception {
@@ -92,119 +174,331 @@ class DexInstallProcessor {
             return;
         }
 
-        int secondaryNumber = 2;
-
-        final ZipFile apkZipFile = new ZipFile(apkFile);
-        ZipEntry dexEntry;
+        ApkSession apkSession = new ApkSession(apkFile);
+        try {
+            List<DexHolder> dexHolderList = new ArrayList<>();
+            int totalDexNum = apkSession.getSecondaryDexCount() + 1;
+            for (int secondaryNumber = 2; secondaryNumber <= totalDexNum; secondaryNumber++) {
+                dexHolderList.add(DexHolder.obtainApkBuffer(secondaryNumber, apkSession,
+                        apkSession.getDexEntry(secondaryNumber), null, null));
+            }
 
-        List<DexHolder> dexHolderList = new ArrayList<>();
-        while ((dexEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX)) != null) {
-            byte[] bytes = obtainEntryBytesInApk(apkZipFile, dexEntry);
-            dexHolderList.add(new DexHolder.ApkBuffer(secondaryNumber, bytes, null, null));
-            secondaryNumber++;
+            DexLoader.create(Build.VERSION.SDK_INT).install(context.getClassLoader(), dexHolderList);
+        } finally {
+            apkSession.close();
         }
 
-        DexLoader.create(Build.VERSION.SDK_INT).install(context.getClassLoader(), dexHolderList);
-        apkZipFile.close();
-
         try {
             BoostNative.recoverAction();
         } catch (UnsatisfiedLinkError ignored) {
         }
     }
 
-    private void installSecondaryDexes(ClassLoader loader, List<DexHolder> dexHolderList) throws Exception {
-        DexLoader.create(Build.VERSION.SDK_INT).install(loader, dexHolderList, mPreferences);
+    private List<DexHolder> installSecondaryDexes(ClassLoader loader, List<Future<DexHolder>> dexHolderFutureList,
+                                                  File rootDir, Result result) throws Exception {
+        DexLoader dexLoader = DexLoader.create(Build.VERSION.SDK_INT);
+        LazyInstaller lazyInstaller = obtainLazyInstaller(rootDir, dexHolderFutureList.size() + 1);
+        List<DexHolder> dexHolderList = dexLoader.install(loader, dexHolderFutureList, mManifest, lazyInstaller);
+        mDexFileList = obtainDexFileList(dexHolderList);
+        if (lazyInstaller != null) {
+            result.lazyDexCount = lazyInstaller.getPendingCount();
+            lazyInstaller.attach(loader, dexLoader, mManifest, rootDir, mDexFileList);
+            mLazyInstaller = lazyInstaller;
+        }
+
         try {
             BoostNative.recoverAction();
         } catch (UnsatisfiedLinkError ignored) {
         }
-        Monitor.get().logDebug("After install all, sp value is " + mPreferences.getAll());
+
+        mLoadPlanner.reportAndRecord(dexHolderList, mManifest, result);
+
+        // all holders are produced now, records of them and the apk are written once together
+        InstallTracer.Span span = InstallTracer.begin("commit manifest");
+        try {
+            // costs are written along with the manifest, or alone only if they moved much
+            boolean manifestWritten = mManifest.commit();
+            mLoadPlanner.commit(rootDir, manifestWritten);
+        } finally {
+            span.end();
+        }
+        Monitor.get().logDebug("After install all, manifest is {}", mManifest);
+        return dexHolderList;
     }
 
-    @SuppressLint("ApplySharedPref")
-    private List<DexHolder> obtainDexObjectList(File apkFile, File rootDir, File dexDir, File odexDir, File zipDir, Result result) throws IOException {
-        long archiveCheckSum = Utility.doZipCheckSum(apkFile);
-        long archiveTimeStamp = apkFile.lastModified();
+    /**
+     * Lazy installation needs the class map recorded in a former launch of the same apk,
+     * all dexes are installed at startup until it is recorded.
+     * @return null if all dexes are installed at startup.
+     */
+    private LazyInstaller obtainLazyInstaller(File rootDir, int totalDexNum) {
+        int[] startupDexNumbers = Monitor.get().getStartupDexNumbers();
+        if (startupDexNumbers == null) {
+            return null;
+        }
+
+        DexClassMap classMap = DexClassMap.load(new File(rootDir, Constants.CLASS_MAP_FILENAME));
+        if (classMap == null) {
+            Monitor.get().logInfo("No class map, install all dexes at startup");
+            mNeedClassMap = true;
+            return null;
+        }
+        return new LazyInstaller(startupDexNumbers, totalDexNum, classMap);
+    }
+
+    private static List<Object> obtainDexFileList(List<DexHolder> dexHolderList) {
+        List<Object> dexFileList = new ArrayList<>(dexHolderList.size());
+        for (DexHolder dexHolder : dexHolderList) {
+            dexFileList.add(dexHolder.mDexFile);
+        }
+        return dexFileList;
+    }
 
-        String keyApkTime = Constants.KEY_TIME_STAMP;
-        String keyApkCrc = Constants.KEY_CRC;
-        String keyApkDexNum = Constants.KEY_DEX_NUMBER;
+    private static void recordClassMap(File rootDir, List<Object> dexFileList) {
+        try {
+            DexClassMap.build(dexFileList).write(new File(rootDir, Constants.CLASS_MAP_FILENAME));
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to record class map", e);
+        }
+    }
 
-        boolean isModified = (mPreferences.getLong(keyApkTime, Constants.NO_VALUE) != archiveTimeStamp)
-                || (mPreferences.getLong(keyApkCrc, Constants.NO_VALUE) != archiveCheckSum);
+    /**
+     * Start producing holders of all secondary dexes in background, in dex order. The installing thread
+     * consumes them one by one, so extraction of next dex is overlapped with loading of current one.
+     * Records of holders and the apk are put into the manifest, which is committed after installation.
+     */
+    private List<Future<DexHolder>> obtainDexObjectList(Context context, File apkFile, File rootDir,
+                                                        final File dexDir, final File odexDir, final File zipDir,
+                                                        Result result) throws IOException {
+        long checkStart = System.nanoTime();
+        InstallTracer.Span span = InstallTracer.begin("check apk");
+        long archiveTimeStamp = apkFile.lastModified();
+        long archiveFingerprint = obtainApkFingerprint(context, apkFile);
+
+        long archiveCheckSum;
+        boolean isModified;
+        if (archiveFingerprint != Constants.NO_VALUE
+                && archiveFingerprint == mManifest.getApkFingerprint()
+                && archiveTimeStamp == mManifest.getApkTimeStamp()) {
+            // apk is not even opened if all dexes are loaded from cache
+            archiveCheckSum = mManifest.getApkCrc();
+            isModified = false;
+            result.apkFingerprintMatched = true;
+        } else {
+            // central directory is indexed at the same time, ready for extraction if apk is modified
+            archiveCheckSum = mApkSession.getCentralDirCrc();
+            isModified = (mManifest.getApkTimeStamp() != archiveTimeStamp)
+                    || (mManifest.getApkCrc() != archiveCheckSum);
+            mManifest.putApkFingerprint(archiveFingerprint);
+        }
+        span.end();
+        result.apkCheckCost = System.nanoTime() - checkStart;
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Check apk in " + result.apkCheckCost + "ns, fingerprint matched: "
+                    + result.apkFingerprintMatched + ", modified: " + isModified);
+        }
 
         result.modified = isModified;
 
-        List<DexHolder> dexHolderList = new ArrayList<>();
+        List<Future<DexHolder>> dexHolderFutureList = new ArrayList<>();
         if (isModified) {
-            Utility.clearDirFiles(dexDir);
-            Utility.clearDirFiles(odexDir);
-            Utility.clearDirFiles(zipDir);
-
-            SharedPreferences.Editor edit = mPreferences.edit();
-            edit.clear();
-            edit.commit();
+            Utility.clearDirFiles(dexDir, Constants.TEMP_FILE_PREFIX);
+            Utility.clearDirFiles(zipDir, Constants.TEMP_FILE_PREFIX);
+            // classes of the profile and the map are of the old apk
+            Utility.deleteFiles(new File(rootDir, Constants.CLASS_LOAD_PROFILE_FILENAME),
+                    new File(rootDir, Constants.CLASS_MAP_FILENAME));
+
+            int oldTotalDexNum = mManifest.getDexNumber();
+            int totalDexNum = mApkSession.getSecondaryDexCount() + 1;
+
+            // old records are dropped on disk only when the manifest is committed after installation
+            mManifest.trimRecords(totalDexNum);
+            for (int secondaryNumber = totalDexNum + 1; secondaryNumber <= oldTotalDexNum; secondaryNumber++) {
+                clearCachedFiles(secondaryNumber, dexDir, odexDir, zipDir);
+            }
 
-            int secondaryNumber = 2;
+            ExecutorService producer = startProducer(totalDexNum - 1);
+            for (int secondaryNumber = 2; secondaryNumber <= totalDexNum; secondaryNumber++) {
+                final int dexNumber = secondaryNumber;
+                final ZipIndex.DexEntry dexFileEntry = mApkSession.getDexEntry(secondaryNumber);
 
-            final ZipFile apkZipFile = new ZipFile(apkFile);
-            ZipEntry dexEntry;
+                // cached files of a dex not changed by the update are reused, as if apk is not modified
+                if (mManifest.isSameEntry(secondaryNumber, dexFileEntry)) {
+                    result.reusedDexCount++;
+                    dexHolderFutureList.add(producer.submit(new Callable<DexHolder>() {
+                        @Override
+                        public DexHolder call() throws Exception {
+                            return produceDexHolder(dexNumber, null, dexDir, odexDir, zipDir);
+                        }
+                    }));
+                    continue;
+                }
 
-            while ((dexEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX)) != null) {
-                File dexFile = new File(dexDir, secondaryNumber + Constants.DEX_SUFFIX);
-                File optDexFile = new File(odexDir, secondaryNumber + Constants.ODEX_SUFFIX);
-                if (BoostNative.isSupportFastLoad()) {
-                    // all in apk dex bytes
-                    if (Utility.isBetterUseApkBuf()) {
-                        byte[] bytes = obtainEntryBytesInApk(apkZipFile, dexEntry);
-                        dexHolderList.add(new DexHolder.ApkBuffer(secondaryNumber, bytes, dexFile, optDexFile));
-                    } else {
-                        File validDexFile = obtainEntryFileInApk(apkZipFile, dexEntry, dexFile);
-                        dexHolderList.add(DexHolder.obtainValidDexBuffer(mPreferences, secondaryNumber, validDexFile, optDexFile));
-                    }
-                } else {
-                    // all dex or zip
-                    if (Environment.getDataDirectory().getFreeSpace() > Constants.SPACE_THRESHOLD) {
-                        dexHolderList.add(DexHolder.obtainValidForceDexOpt(mPreferences, secondaryNumber, dexFile, optDexFile, apkZipFile, dexEntry));
-                    } else {
-                        File zipFile = new File(zipDir, secondaryNumber + Constants.ZIP_SUFFIX);
-                        File zipOptFile = new File(zipDir, secondaryNumber + Constants.ODEX_SUFFIX);
-                        dexHolderList.add(DexHolder.obtainValidZipDex(mPreferences, secondaryNumber, zipFile, zipOptFile, apkZipFile, dexEntry));
+                clearCachedFiles(secondaryNumber, dexDir, odexDir, zipDir);
+                mManifest.resetRecord(secondaryNumber, dexFileEntry);
+                dexHolderFutureList.add(producer.submit(new Callable<DexHolder>() {
+                    @Override
+                    public DexHolder call() throws Exception {
+                        return produceDexHolder(dexNumber, dexFileEntry, dexDir, odexDir, zipDir);
                     }
-                }
-                secondaryNumber++;
+                }));
             }
-            apkZipFile.close();
+            Monitor.get().logInfo("Reuse cached files of {} dexes", result.reusedDexCount);
 
-            edit.putInt(keyApkDexNum, secondaryNumber - 1);
-            edit.putLong(keyApkTime, archiveTimeStamp);
-            edit.putLong(keyApkCrc, archiveCheckSum);
-            edit.commit();
+            mManifest.putApkInfo(totalDexNum, archiveTimeStamp, archiveCheckSum);
         } else {
             // ensure valid dex cache
-            int totalDexNum = mPreferences.getInt(keyApkDexNum, 0);
+            int totalDexNum = mManifest.getDexNumber();
+            ExecutorService producer = startProducer(totalDexNum - 1);
             for (int secondaryNumber = 2; secondaryNumber <= totalDexNum; secondaryNumber++) {
-                dexHolderList.add(obtainDexHolder(secondaryNumber,
-                        apkFile, dexDir, odexDir, zipDir));
+                final int dexNumber = secondaryNumber;
+                dexHolderFutureList.add(producer.submit(new Callable<DexHolder>() {
+                    @Override
+                    public DexHolder call() throws Exception {
+                        return produceDexHolder(dexNumber, null, dexDir, odexDir, zipDir);
+                    }
+                }));
             }
         }
 
-        return dexHolderList;
+        return dexHolderFutureList;
     }
 
-    private DexHolder obtainDexHolder(int secondaryNumber, File apkFile, File dexDir, File odexDir, File zipDir)
-            throws IOException {
-        int type = mPreferences.getInt(Constants.KEY_DEX_OBJ_TYPE + secondaryNumber, Constants.LOAD_TYPE_INVALID);
-        if (type == Constants.LOAD_TYPE_INVALID) {
-            if (BoostNative.isSupportFastLoad()) {
-                type = Utility.isBetterUseApkBuf()
-                        ? Constants.LOAD_TYPE_APK_BUF
-                        : Constants.LOAD_TYPE_DEX_BUF;
+    /**
+     * Fingerprint from path, size, modification time and inode of apk, and version of app,
+     * all of which are obtained without reading apk. A replaced apk changes at least one of them.
+     * @return the fingerprint, or NO_VALUE if apk can not be stat.
+     */
+    private static long obtainApkFingerprint(Context context, File apkFile) {
+        InstallTracer.Span span = InstallTracer.begin("fingerprint");
+        try {
+            return doObtainApkFingerprint(context, apkFile);
+        } finally {
+            span.end();
+        }
+    }
+
+    private static long doObtainApkFingerprint(Context context, File apkFile) {
+        long inode = Utility.obtainInode(apkFile);
+        if (inode == Constants.NO_VALUE) {
+            return Constants.NO_VALUE;
+        }
+
+        StringBuilder builder = new StringBuilder(apkFile.getPath())
+                .append('|').append(apkFile.length())
+                .append('|').append(apkFile.lastModified())
+                .append('|').append(inode);
+
+        ApplicationInfo applicationInfo = context.getApplicationInfo();
+        if (applicationInfo != null) {
+            builder.append('|').append(applicationInfo.sourceDir)
+                    .append('|').append(applicationInfo.targetSdkVersion);
+            try {
+                // hidden field of newer systems
+                builder.append('|').append(ApplicationInfo.class.getField("versionCode").getInt(applicationInfo));
+            } catch (Exception ignored) {
+            }
+        }
+
+        return Utility.hash64(builder.toString());
+    }
+
+    private static void clearCachedFiles(int secondaryNumber, File dexDir, File odexDir, File zipDir) {
+        Utility.deleteFiles(new File(dexDir, secondaryNumber + Constants.DEX_SUFFIX),
+                new File(odexDir, secondaryNumber + Constants.ODEX_SUFFIX),
+                new File(zipDir, secondaryNumber + Constants.ZIP_SUFFIX),
+                new File(zipDir, secondaryNumber + Constants.ODEX_SUFFIX));
+    }
+
+    /**
+     * Holders are prepared by a bounded pool, with only one thread they are prepared one by one.
+     */
+    private ExecutorService startProducer(int dexCount) {
+        int threadCount = Math.max(1, Math.min(Monitor.get().getExtractThreadCount(), dexCount));
+        Monitor.get().logInfo("Produce {} dex holders in {} threads", dexCount, threadCount);
+
+        // producers are waited for by installation, so they never wait for it in install gate
+        mProducer = Executors.newFixedThreadPool(threadCount, InstallGate.newInstallWorkerFactory());
+        return mProducer;
+    }
+
+    /**
+     * Apk session is closed here, after all producing tasks are done or cancelled.
+     */
+    private void finishInstallation() {
+        if (mProducer != null) {
+            mProducer.shutdownNow();
+            try {
+                if (!mProducer.awaitTermination(Constants.PRODUCER_TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    Monitor.get().logWarning("Producer is not terminated in time");
+                }
+            } catch (InterruptedException e) {
+                Monitor.get().logWarning("Interrupted while terminating producer", e);
+            }
+            mProducer = null;
+        }
+
+        if (mApkSession != null) {
+            mApkSession.close();
+            mApkSession = null;
+        }
+    }
+
+    /**
+     * @param newDexEntry entry of the dex if it is new, or null if it is taken from cache.
+     */
+    private DexHolder produceDexHolder(int secondaryNumber, ZipIndex.DexEntry newDexEntry,
+                                       File dexDir, File odexDir, File zipDir) throws IOException {
+        long start = System.nanoTime();
+        InstallTracer.Span span = InstallTracer.begin(newDexEntry != null ? "produce new" : "produce", secondaryNumber);
+        DexHolder dexHolder;
+        try {
+            dexHolder = newDexEntry != null
+                    ? obtainNewDexHolder(secondaryNumber, newDexEntry, dexDir, odexDir, zipDir)
+                    : obtainDexHolder(secondaryNumber, dexDir, odexDir, zipDir);
+        } finally {
+            span.end();
+        }
+        if (dexHolder != null) {
+            dexHolder.mProduceCost = System.nanoTime() - start;
+        }
+        return dexHolder;
+    }
+
+    private DexHolder obtainNewDexHolder(int secondaryNumber, ZipIndex.DexEntry dexEntry,
+                                         File dexDir, File odexDir, File zipDir) throws IOException {
+        File dexFile = new File(dexDir, secondaryNumber + Constants.DEX_SUFFIX);
+        File optDexFile = new File(odexDir, secondaryNumber + Constants.ODEX_SUFFIX);
+        int type = planLoadType(dexEntry);
+        if (BoostNative.isSupportFastLoad()) {
+            // all in apk dex bytes
+            if (type == Constants.LOAD_TYPE_APK_BUF) {
+                return DexHolder.obtainApkBuffer(secondaryNumber, mApkSession, dexEntry, dexFile, optDexFile);
             } else {
-                type = Constants.LOAD_TYPE_ZIP_OPT;
+                File validDexFile = Utility.obtainEntryFileInZip(mApkSession, dexEntry, dexFile);
+                DexHolder dexHolder = DexHolder.obtainValidDexBuffer(mManifest, secondaryNumber, validDexFile, optDexFile);
+                dexHolder.mProduceOp = LoadPlanner.OP_EXTRACT;
+                return dexHolder;
+            }
+        } else {
+            // all dex or zip
+            if (type == Constants.LOAD_TYPE_DEX_OPT) {
+                return DexHolder.obtainValidForceDexOpt(mManifest, secondaryNumber, dexFile, optDexFile, mApkSession, dexEntry);
+            } else {
+                File zipFile = new File(zipDir, secondaryNumber + Constants.ZIP_SUFFIX);
+                File zipOptFile = new File(zipDir, secondaryNumber + Constants.ODEX_SUFFIX);
+                return DexHolder.obtainValidZipDex(mManifest, secondaryNumber, zipFile, zipOptFile, mApkSession, dexEntry);
             }
         }
+    }
+
+    private DexHolder obtainDexHolder(int secondaryNumber, File dexDir, File odexDir, File zipDir) throws IOException {
+        int type = mManifest.getType(secondaryNumber, Constants.LOAD_TYPE_INVALID);
+        boolean isApkBufReserved = false;
+        if (type == Constants.LOAD_TYPE_INVALID) {
+            type = planLoadType(mApkSession.getDexEntry(secondaryNumber));
+            isApkBufReserved = type == Constants.LOAD_TYPE_APK_BUF;
+        }
 
         if (type == Constants.LOAD_TYPE_ZIP_OPT) {
             File zipFile = new File(zipDir, secondaryNumber + Constants.ZIP_SUFFIX);
@@ -213,11 +507,8 @@ class DexInstallProcessor {
             if (isZipFileValid(zipFile, secondaryNumber)) {
                 return new DexHolder.ZipOpt(secondaryNumber, zipFile, zipOptFile);
             } else {
-                ZipFile apkZipFile = new ZipFile(apkFile);
-                ZipEntry dexFileEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX);
-                DexHolder.ZipOpt zipOpt = DexHolder.obtainValidZipDex(mPreferences, secondaryNumber, zipFile, zipOptFile, apkZipFile, dexFileEntry);
-                apkZipFile.close();
-                return zipOpt;
+                ZipIndex.DexEntry dexFileEntry = mApkSession.getDexEntry(secondaryNumber);
+                return DexHolder.obtainValidZipDex(mManifest, secondaryNumber, zipFile, zipOptFile, mApkSession, dexFileEntry);
             }
         }
 
@@ -241,9 +532,8 @@ class DexInstallProcessor {
                 if (BoostNative.isSupportFastLoad()) {
                     type = Constants.LOAD_TYPE_APK_BUF;
                 } else {
-                    ZipFile apkZipFile = new ZipFile(apkFile);
-                    ZipEntry dexFileEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX);
-                    return DexHolder.obtainValidForceDexOpt(mPreferences, secondaryNumber, dexFile, optDexFile, apkZipFile, dexFileEntry);
+                    ZipIndex.DexEntry dexFileEntry = mApkSession.getDexEntry(secondaryNumber);
+                    return DexHolder.obtainValidForceDexOpt(mManifest, secondaryNumber, dexFile, optDexFile, mApkSession, dexFileEntry);
                 }
             }
         }
@@ -260,9 +550,8 @@ class DexInstallProcessor {
                 if (validDexFile != null) {
                     return new DexHolder.DexOpt(secondaryNumber, validDexFile, optDexFile, true);
                 } else {
-                    ZipFile apkZipFile = new ZipFile(apkFile);
-                    ZipEntry dexFileEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX);
-                    return DexHolder.obtainValidForceDexOpt(mPreferences, secondaryNumber, dexFile, optDexFile, apkZipFile, dexFileEntry);
+                    ZipIndex.DexEntry dexFileEntry = mApkSession.getDexEntry(secondaryNumber);
+                    return DexHolder.obtainValidForceDexOpt(mManifest, secondaryNumber, dexFile, optDexFile, mApkSession, dexFileEntry);
                 }
             }
         }
@@ -271,29 +560,51 @@ class DexInstallProcessor {
             if (!BoostNative.isSupportFastLoad()) {
                 Monitor.get().logError("Do not support apk buf!");
             }
-            ZipFile apkZipFile = new ZipFile(apkFile);
-            ZipEntry dexFileEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX);
-            byte[] bytes = obtainEntryBytesInApk(apkZipFile, dexFileEntry);
-            DexHolder dexHolder = new DexHolder.ApkBuffer(secondaryNumber, bytes, dexFile, optDexFile);
-            apkZipFile.close();
-            return dexHolder;
+            ZipIndex.DexEntry dexFileEntry = mApkSession.getDexEntry(secondaryNumber);
+            if (!isApkBufReserved) {
+                obtainMemoryBudget().chargeApkBuffer(dexFileEntry.size,
+                        !DexHolder.isMappedFromApk(mApkSession, dexFileEntry));
+            }
+            return DexHolder.obtainApkBuffer(secondaryNumber, mApkSession, dexFileEntry, dexFile, optDexFile);
         }
 
         return null;
     }
 
-    private byte[] obtainEntryBytesInApk(ZipFile apkZipFile, ZipEntry dexFileEntry) throws IOException {
-        return Utility.obtainEntryBytesInZip(apkZipFile, dexFileEntry);
+    /**
+     * Load type predicted fastest is taken if resources are enough. Dex is held in memory only if
+     * the budget of this installation is enough, counting all holders produced before it.
+     * @return load type of a dex to be extracted, memory of which is taken from the budget.
+     */
+    private int planLoadType(ZipIndex.DexEntry dexEntry) throws IOException {
+        boolean isMapped = DexHolder.isMappedFromApk(mApkSession, dexEntry);
+        if (BoostNative.isSupportFastLoad()) {
+            MemoryBudget memoryBudget = obtainMemoryBudget();
+            int type = mLoadPlanner.planNewDex(dexEntry.size, isMapped, true, !memoryBudget.isSpaceLow());
+            if (type == Constants.LOAD_TYPE_APK_BUF) {
+                return memoryBudget.reserveApkBuffer(dexEntry.size, !isMapped)
+                        ? Constants.LOAD_TYPE_APK_BUF : Constants.LOAD_TYPE_DEX_BUF;
+            }
+            memoryBudget.chargeDexBuffer(dexEntry.size);
+            return type;
+        }
+        return mLoadPlanner.planNewDex(dexEntry.size, isMapped, false,
+                Environment.getDataDirectory().getFreeSpace() > Constants.SPACE_THRESHOLD);
     }
 
-    private File obtainEntryFileInApk(ZipFile apkZipFile, ZipEntry dexFileEntry, File target) throws IOException {
-        return Utility.obtainEntryFileInZip(apkZipFile, dexFileEntry, target);
+    /**
+     * Memory is measured only when a holder needs it, since holders of an unmodified apk rarely do.
+     */
+    private synchronized MemoryBudget obtainMemoryBudget() {
+        if (mMemoryBudget == null) {
+            mMemoryBudget = MemoryBudget.create(mContext);
+        }
+        return mMemoryBudget;
     }
 
 
     private File getValidDexFile(File file, int secondaryNumber) throws IOException {
-        if (!checkFileValid(secondaryNumber, Constants.KEY_DEX_CHECKSUM, Constants.KEY_DEX_TIME,
-                file, false)) {
+        if (!checkFileValid(secondaryNumber, false, file, false)) {
             return null;
         }
 
@@ -302,61 +613,60 @@ class DexInstallProcessor {
 
     private File getValidOptDexFile(File file, int secondaryNumber) throws IOException {
         if (!file.exists()) {
-            Monitor.get().logInfo("opt file does not exist: " + file.getPath());
+            Monitor.get().logInfo("opt file does not exist: {}", file);
             return null;
         }
 
-        if (!checkFileValid(secondaryNumber, Constants.KEY_ODEX_CHECKSUM, Constants.KEY_ODEX_TIME,
-                file, false)) {
+        if (!checkFileValid(secondaryNumber, true, file, false)) {
             return null;
         }
 
         return file;
     }
 
-    private boolean checkFileValid(int secondaryNumber,
-                                   String keyCheckSum, String keyTime,
+    private boolean checkFileValid(int secondaryNumber, boolean isOdex,
                                    File file, boolean isZip) {
         if (!file.exists()) {
-            Monitor.get().logWarning("File does not exist! " + file.getPath());
+            Monitor.get().logWarning("File does not exist! {}", file);
             return false;
         }
 
-        long expectedModTime = mPreferences.getLong(keyTime + secondaryNumber, Constants.NO_VALUE);
+        long expectedModTime = isOdex ? mManifest.getOdexTime(secondaryNumber) : mManifest.getDexTime(secondaryNumber);
         long lastModified = file.lastModified();
         if (expectedModTime != lastModified) {
             Monitor.get().logWarning("Invalid file: "
-                    + " (key \"" + (keyCheckSum + keyTime + secondaryNumber) + "\"), expected modification time: "
+                    + " (" + (isOdex ? "odex " : "dex ") + secondaryNumber + "), expected modification time: "
                     + expectedModTime + ", modification time: " + lastModified);
             return false;
         }
 
         long checkSum = 0;
         boolean doCheckSum = true;
-        if (Constants.KEY_DEX_CHECKSUM.equals(keyCheckSum)) {
+        if (!isOdex) {
             try {
                 if (isZip) {
                     checkSum = Utility.doZipCheckSum(file);
-                } else if (mDoCheckSum) {
-                    checkSum = Utility.doFileCheckSum(file);
-                } else {
+                } else if (Utility.isDexFileStructureValid(file)) {
+                    // reading whole dex is too slow while installing, so checksum is verified later
                     doCheckSum = false;
+                    mDeferredCheckSet.add(secondaryNumber);
+                } else {
+                    Monitor.get().logWarning("Invalid dex structure: {}", file);
+                    return false;
                 }
             } catch (IOException e) {
                 return false;
             }
-        } else if (Constants.KEY_ODEX_CHECKSUM.equals(keyCheckSum)) {
-            checkSum = file.length();
         } else {
-            Monitor.get().logWarning("unsupported checksum key: " + keyCheckSum);
-            return false;
+            checkSum = file.length();
         }
 
         if (doCheckSum) {
-            long expectedCheckSum = mPreferences.getLong(keyCheckSum + secondaryNumber, Constants.NO_VALUE);
+            long expectedCheckSum = isOdex
+                    ? mManifest.getOdexCheckSum(secondaryNumber) : mManifest.getDexCheckSum(secondaryNumber);
             if (expectedCheckSum != checkSum) {
                 Monitor.get().logWarning("Invalid file: "
-                        + " (key \"" + (keyCheckSum + keyTime + secondaryNumber) + "\"), expected checksum: "
+                        + " (" + (isOdex ? "odex " : "dex ") + secondaryNumber + "), expected checksum: "
                         + expectedCheckSum + ", file checksum: " + checkSum);
                 return false;
             }
@@ -365,9 +675,88 @@ class DexInstallProcessor {
         return true;
     }
 
+    /**
+     * Checksums of dex files are verified in background after installation. A corrupted dex is
+     * quarantined, so that it is extracted again in next installation.
+     */
+    private void scheduleDeferredCheck(final Context context, final File rootDir,
+                                       final File dexDir, final File odexDir) {
+        final List<Integer> checkList;
+        synchronized (mDeferredCheckSet) {
+            if (mDeferredCheckSet.isEmpty()) {
+                return;
+            }
+            checkList = new ArrayList<>(mDeferredCheckSet);
+            mDeferredCheckSet.clear();
+        }
+
+        final InstallManifest manifest = mManifest;
+        Monitor.get().doAfterInstall(new Runnable() {
+            @Override
+            public void run() {
+                List<Integer> corruptedList = new ArrayList<>();
+                for (int secondaryNumber : checkList) {
+                    File dexFile = new File(dexDir, secondaryNumber + Constants.DEX_SUFFIX);
+                    try {
+                        long checkSum = Utility.doFileCheckSum(dexFile);
+                        long expectedCheckSum = manifest.getDexCheckSum(secondaryNumber);
+                        if (checkSum != expectedCheckSum) {
+                            Monitor.get().logWarning("Corrupted dex {}, expected checksum: {}, file checksum: {}",
+                                    dexFile, expectedCheckSum, checkSum);
+                            corruptedList.add(secondaryNumber);
+                        }
+                    } catch (IOException e) {
+                        Monitor.get().logWarning("Fail to verify " + dexFile.getPath(), e);
+                    }
+                }
+                Monitor.get().logInfo("Verified {} dexes, corrupted {}", checkList.size(), corruptedList);
+
+                if (!corruptedList.isEmpty()) {
+                    quarantineDexes(context, rootDir, dexDir, odexDir, corruptedList, manifest);
+                }
+            }
+        });
+    }
+
+    private static void quarantineDexes(Context context, File rootDir, File dexDir, File odexDir,
+                                        List<Integer> corruptedList, InstallManifest checkedManifest) {
+        Locker locker = new Locker(new File(rootDir, Constants.LOCK_INSTALL_FILENAME));
+        try {
+            locker.lock();
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to lock for quarantine", e);
+            return;
+        }
+
+        try {
+            // records may be changed by optimizing process, so they are loaded again
+            InstallManifest manifest = InstallManifest.load(context, rootDir);
+            for (int secondaryNumber : corruptedList) {
+                if (manifest.getDexTime(secondaryNumber) != checkedManifest.getDexTime(secondaryNumber)) {
+                    continue;
+                }
+                manifest.quarantine(secondaryNumber);
+                Utility.deleteFiles(new File(dexDir, secondaryNumber + Constants.DEX_SUFFIX),
+                        new File(odexDir, secondaryNumber + Constants.ODEX_SUFFIX));
+            }
+            manifest.commit();
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to quarantine dexes", e);
+        } finally {
+            locker.close();
+        }
+    }
+
+    private static void writeClassLoadProfile(ClassLoadTracer tracer, File rootDir, List<Object> dexFileList) {
+        try {
+            tracer.writeProfile(rootDir, dexFileList);
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to write class load profile", e);
+        }
+    }
+
     private boolean isZipFileValid(File zipFile, int secondaryNumber) {
-        return checkFileValid(secondaryNumber, Constants.KEY_DEX_CHECKSUM,
-                Constants.KEY_DEX_TIME, zipFile, true);
+        return checkFileValid(secondaryNumber, false, zipFile, true);
     }
 
 }
@@ -1,6 +1,6 @@
 package com.bytedance.boost_multidex;
 
-import android.content.SharedPreferences;
+import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
@@ -9,6 +9,7 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.zip.ZipFile;
 
 import dalvik.system.DexFile;
@@ -30,23 +31,35 @@ abstract class DexLoader {
         }
     }
 
-    void install(ClassLoader loader, List<DexHolder> dexHolderList, SharedPreferences preferences) throws Exception {
-        Field pathListField = Utility.findFieldRecursively(loader.getClass(), "pathList");
-        Object dexPathList = pathListField.get(loader);
+    /**
+     * Holders are taken in dex order as soon as each of them is produced,
+     * and all elements are appended to dexElements at once in the end.
+     * Holders of lazy dexes are only handed to lazyInstaller if it is not null.
+     * @return holders that are finally installed, which may be faster ones of the produced.
+     */
+    List<DexHolder> install(ClassLoader loader, List<Future<DexHolder>> dexHolderFutureList,
+                            InstallManifest manifest, LazyInstaller lazyInstaller) throws Exception {
+        Object dexPathList = obtainDexPathList(loader);
 
-        Object[] elements = makeDexElements(dexHolderList, preferences);
+        List<DexHolder> dexHolderList = new ArrayList<>(dexHolderFutureList.size());
+        Object[] elements = makeDexElements(dexHolderFutureList, dexHolderList, manifest, lazyInstaller);
         Utility.expandFieldArray(dexPathList, "dexElements", elements);
+        return dexHolderList;
     }
 
-    void install(ClassLoader loader, List<DexHolder> dexHolderList) throws Exception {
+    static Object obtainDexPathList(ClassLoader loader) throws Exception {
         Field pathListField = Utility.findFieldRecursively(loader.getClass(), "pathList");
-        Object dexPathList = pathListField.get(loader);
+        return pathListField.get(loader);
+    }
+
+    void install(ClassLoader loader, List<DexHolder> dexHolderList) throws Exception {
+        Object dexPathList = obtainDexPathList(loader);
 
         ArrayList<Object> elements = new ArrayList<>();
         for (int i = 0; i < dexHolderList.size(); ++i) {
             DexHolder dexHolder = dexHolderList.get(i);
             elements.add(dexHolder.toDexListElement(mElementConstructor));
-            Monitor.get().logInfo("Install holder: " + dexHolder.getClass().getName() + ", index " + i);
+            Monitor.get().logInfo("Install holder: {}, index {}", dexHolder.getClass().getName(), i);
         }
 
         Utility.expandFieldArray(dexPathList, "dexElements", elements.toArray());
@@ -58,37 +71,83 @@ abstract class DexLoader {
      * OS version is catching IOException and just logging some of them, this version is letting
      * them through.
      */
-    private Object[] makeDexElements(List<DexHolder> dexHolderList, SharedPreferences preferences) throws Exception {
+    private Object[] makeDexElements(List<Future<DexHolder>> dexHolderFutureList, List<DexHolder> dexHolderList,
+                                     InstallManifest manifest, LazyInstaller lazyInstaller) throws Exception {
         ArrayList<Object> elements = new ArrayList<>();
 
-        for (int i = 0; i < dexHolderList.size(); ++i) {
-            DexHolder dexHolder = dexHolderList.get(i);
+        for (int i = 0; i < dexHolderFutureList.size(); ++i) {
+            // holders are in dex order from classes2.dex
+            int secondaryNumber = i + 2;
 
-            Object element = dexHolder.toDexListElement(mElementConstructor);
-            while (element == null && dexHolder != null) {
-                Monitor.get().logWarning("Load faster dex in holder " + dexHolder.toString());
-                dexHolder = dexHolder.toFasterHolder(preferences);
-                if (dexHolder != null) {
-                    element = dexHolder.toDexListElement(mElementConstructor);
-                }
+            DexHolder dexHolder;
+            InstallTracer.Span span = InstallTracer.begin("wait holder", secondaryNumber);
+            try {
+                dexHolder = Utility.obtainFutureResult(dexHolderFutureList.get(i));
+            } finally {
+                span.end();
             }
 
-            if (element != null) {
-                Monitor.get().logInfo("Load dex in holder " + dexHolder.toString());
-                dexHolderList.set(i, dexHolder);
-                elements.add(element);
-            } else {
-                throw new RuntimeException("Fail to load dex, index is " + i);
+            if (lazyInstaller != null && lazyInstaller.isLazy(secondaryNumber)) {
+                Monitor.get().logInfo("Install dex lazily in holder {}", dexHolder);
+                dexHolderList.add(dexHolder);
+                lazyInstaller.addPending(secondaryNumber, dexHolder);
+                continue;
             }
 
-            String dexInfo = dexHolder.toString();
-            Result.get().addDexInfo(dexInfo);
-            Monitor.get().logInfo("Add info: " + dexInfo);
+            span = InstallTracer.begin("load", secondaryNumber);
+            try {
+                dexHolderList.add(makeDexElement(dexHolder, manifest, elements));
+            } finally {
+                span.end();
+            }
         }
 
         return elements.toArray();
     }
 
+    /**
+     * Element of the holder is added to elements, and a faster holder is tried if it fails to load.
+     * Costs of producing and loading are kept in the holder finally loaded, including failed tries.
+     * @return the holder finally loaded.
+     */
+    DexHolder makeDexElement(DexHolder dexHolder, InstallManifest manifest, List<Object> elements) throws Exception {
+        DexHolder producedHolder = dexHolder;
+        long start = System.nanoTime();
+        int loadOp = dexHolder.getLoadOp();
+        Object element = dexHolder.toDexListElement(mElementConstructor);
+        while (element == null && dexHolder != null) {
+            Monitor.get().logWarning("Load faster dex in holder {}", dexHolder);
+            dexHolder = dexHolder.toFasterHolder(manifest);
+            if (dexHolder != null) {
+                loadOp = dexHolder.getLoadOp();
+                element = dexHolder.toDexListElement(mElementConstructor);
+            }
+        }
+
+        if (element != null) {
+            Monitor.get().logInfo("Load dex in holder {}", dexHolder);
+            elements.add(element);
+        } else {
+            throw new RuntimeException("Fail to load dex in holder " + producedHolder.toString());
+        }
+
+        dexHolder.mProduceOp = producedHolder.mProduceOp;
+        dexHolder.mProduceCost = producedHolder.mProduceCost;
+        dexHolder.mLoadOp = loadOp;
+        dexHolder.mLoadCost = System.nanoTime() - start;
+
+        // dex info is built only if it is reported or logged
+        boolean reportDexInfo = Monitor.get().isReportDexInfo();
+        if (reportDexInfo || Monitor.get().isLoggable(Log.INFO)) {
+            String dexInfo = dexHolder.toString();
+            if (reportDexInfo) {
+                Result.get().addDexInfo(dexInfo);
+            }
+            Monitor.get().logInfo("Add info: {}", dexInfo);
+        }
+        return dexHolder;
+    }
+
     /**
      * A wrapper around
      * {@code private static final dalvik.system.DexPathList#makeDexElements}.
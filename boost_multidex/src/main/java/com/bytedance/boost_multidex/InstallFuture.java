@@ -0,0 +1,32 @@
+package com.bytedance.boost_multidex;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of installation in background, whose result is got by {@link #get()}.
+ */
+public class InstallFuture extends FutureTask<Result> {
+    InstallFuture(Callable<Result> callable) {
+        super(callable);
+    }
+
+    /**
+     * Block until secondary dexes are installed, or the timeout elapses.
+     * @return true if installation is finished.
+     */
+    public boolean awaitInstalled(long timeoutMillis) throws InterruptedException {
+        try {
+            get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // installation failures are kept in result, it is finished anyway
+            return true;
+        }
+    }
+}
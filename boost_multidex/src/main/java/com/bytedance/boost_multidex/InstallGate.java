@@ -0,0 +1,145 @@
+package com.bytedance.boost_multidex;
+
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Blocks loading classes of secondary dexes until they are installed in background.
+ *
+ * A loader is inserted as the parent of the app class loader, whose {@link ClassLoader#findClass} is called
+ * when a class is loaded at the first time and not found in boot class path. Until installation finishes,
+ * it looks up the class in dexes already installed, which are the main dex mostly, and only waits for
+ * installation if the class is not there. Then the app class loader looks up it again in all dexes.
+ * The loader is removed by {@link #detach()} once installation finishes.
+ *
+ * Threads working for installation never wait, since installation waits for them. They are the installing
+ * thread and producers of dex holders, which call hooks of {@link Monitor} and may load any class there.
+ */
+class InstallGate {
+    private static final ThreadLocal<Boolean> sInstallWorker = new ThreadLocal<>();
+
+    private final Future<?> mInstallation;
+    private final ClassLoader mLoader;
+    private final Method mFindClassMethod;
+    private GateClassLoader mGateLoader;
+
+    private InstallGate(ClassLoader loader, Future<?> installation) throws NoSuchMethodException {
+        mLoader = loader;
+        mInstallation = installation;
+        mFindClassMethod = Utility.findMethodRecursively(loader.getClass(), "findClass", String.class);
+    }
+
+    /**
+     * @return null if the gate fails to be inserted, and installation should not be in background then.
+     */
+    static InstallGate attach(ClassLoader loader, Future<?> installation) {
+        try {
+            InstallGate gate = new InstallGate(loader, installation);
+            Field parentField = Utility.findFieldRecursively(loader.getClass(), "parent");
+            gate.mGateLoader = new GateClassLoader(loader.getParent(), gate);
+            parentField.set(loader, gate.mGateLoader);
+            return gate;
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to attach install gate", e);
+            return null;
+        }
+    }
+
+    /**
+     * Classes missed in current thread are not waited for, it must be called by threads installation waits for.
+     */
+    static void markInstallWorker() {
+        sInstallWorker.set(Boolean.TRUE);
+    }
+
+    /**
+     * @return a factory of threads marked by {@link #markInstallWorker()}.
+     */
+    static ThreadFactory newInstallWorkerFactory() {
+        final ThreadFactory factory = Executors.defaultThreadFactory();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return factory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        markInstallWorker();
+                        runnable.run();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Remove the gate loader from the parent chain, loaders inserted beneath it while installing are kept.
+     */
+    void detach() {
+        try {
+            Utility.unlinkParentLoader(mLoader, mGateLoader);
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to detach install gate", e);
+        }
+    }
+
+    private Class<?> findClass(String name) throws ClassNotFoundException {
+        if (mInstallation.isDone()) {
+            return null;
+        }
+
+        try {
+            return (Class<?>) mFindClassMethod.invoke(mLoader, name);
+        } catch (Throwable ignored) {
+            // not in dexes installed yet
+        }
+
+        if (sInstallWorker.get() != null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            mInstallation.get();
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to wait for installation", e);
+        }
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Wait for installation to load " + name
+                    + ", cost " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        }
+        return null;
+    }
+
+    private static class GateClassLoader extends ClassLoader {
+        /**
+         * Thrown to the app class loader which only ignores it, so it is shared without stack trace.
+         */
+        private static final ClassNotFoundException NOT_FOUND = new ClassNotFoundException() {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+        };
+
+        private final InstallGate mGate;
+
+        GateClassLoader(ClassLoader parent, InstallGate gate) {
+            super(parent);
+            mGate = gate;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> clazz = mGate.findClass(name);
+            if (clazz == null) {
+                throw NOT_FOUND;
+            }
+            return clazz;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.bytedance.boost_multidex;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Records of the apk and all secondary dexes, kept in a binary file of fixed layout.
+ * It is read at once when loaded, changed in memory by several threads, and written
+ * durably by {@link #commit()} which replaces the file by renaming.
+ *
+ * Layout: magic, version, apk time stamp, apk crc, apk fingerprint, dex number, record count,
+ * records of secondary dexes from classes2.dex, and crc32 of all bytes before it.
+ * Each record also keeps crc and size of the dex entry in apk, which its cached files are extracted from.
+ */
+class InstallManifest {
+    private static final int MAGIC = 0x424d4458;
+    private static final int VERSION = 1;
+
+    /* header after magic and version */
+    private static final int HEADER_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final int RECORD_SIZE = 4 + 8 + 8 + 8 + 8 + 8 + 8;
+
+    /**
+     * Record of a secondary dex, the dex check sum and time are also used for the zip of ZipOpt.
+     */
+    private static class DexRecord {
+        int type = Constants.LOAD_TYPE_INVALID;
+        long dexCheckSum = Constants.NO_VALUE;
+        long dexTime = Constants.NO_VALUE;
+        long odexCheckSum = Constants.NO_VALUE;
+        long odexTime = Constants.NO_VALUE;
+        long entryCrc = Constants.NO_VALUE;
+        long entrySize = Constants.NO_VALUE;
+
+        DexRecord copy() {
+            DexRecord record = new DexRecord();
+            record.type = type;
+            record.dexCheckSum = dexCheckSum;
+            record.dexTime = dexTime;
+            record.odexCheckSum = odexCheckSum;
+            record.odexTime = odexTime;
+            record.entryCrc = entryCrc;
+            record.entrySize = entrySize;
+            return record;
+        }
+    }
+
+    private final File mFile;
+
+    private long mApkTimeStamp = Constants.NO_VALUE;
+    private long mApkCrc = Constants.NO_VALUE;
+    private long mApkFingerprint = Constants.NO_VALUE;
+    private int mDexNumber;
+    private final List<DexRecord> mDexRecordList = new ArrayList<>();
+
+    private boolean mChanged;
+
+    InstallManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Load manifest in rootDir, records in the old preferences are migrated if there is no manifest yet.
+     */
+    static InstallManifest load(Context context, File rootDir) {
+        InstallManifest manifest = new InstallManifest(new File(rootDir, Constants.MANIFEST_FILENAME));
+        if (manifest.mFile.exists()) {
+            try {
+                return read(manifest.mFile);
+            } catch (IOException e) {
+                Monitor.get().logWarning("Fail to read manifest, records are dropped", e);
+                manifest.clear();
+            }
+        }
+
+        manifest.migrateFromPreferences(context);
+        return manifest;
+    }
+
+    /**
+     * @throws IOException if the file is corrupted or of an unknown version.
+     */
+    static InstallManifest read(File file) throws IOException {
+        InstallManifest manifest = new InstallManifest(file);
+        manifest.readRecords();
+        return manifest;
+    }
+
+    synchronized long getApkTimeStamp() {
+        return mApkTimeStamp;
+    }
+
+    synchronized long getApkCrc() {
+        return mApkCrc;
+    }
+
+    synchronized long getApkFingerprint() {
+        return mApkFingerprint;
+    }
+
+    synchronized int getDexNumber() {
+        return mDexNumber;
+    }
+
+    synchronized void putApkInfo(int dexNumber, long timeStamp, long crc) {
+        if (mDexNumber != dexNumber || mApkTimeStamp != timeStamp || mApkCrc != crc) {
+            mDexNumber = dexNumber;
+            mApkTimeStamp = timeStamp;
+            mApkCrc = crc;
+            mChanged = true;
+        }
+    }
+
+    synchronized void putApkFingerprint(long fingerprint) {
+        if (mApkFingerprint != fingerprint) {
+            mApkFingerprint = fingerprint;
+            mChanged = true;
+        }
+    }
+
+    synchronized int getType(int secondaryNumber, int defaultType) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null || record.type == Constants.LOAD_TYPE_INVALID ? defaultType : record.type;
+    }
+
+    synchronized void putType(int secondaryNumber, int type) {
+        getRecord(secondaryNumber, true).type = type;
+        mChanged = true;
+    }
+
+    synchronized long getDexCheckSum(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null ? Constants.NO_VALUE : record.dexCheckSum;
+    }
+
+    synchronized long getDexTime(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null ? Constants.NO_VALUE : record.dexTime;
+    }
+
+    synchronized void putDexInfo(int secondaryNumber, long checkSum, long time) {
+        DexRecord record = getRecord(secondaryNumber, true);
+        record.dexCheckSum = checkSum;
+        record.dexTime = time;
+        mChanged = true;
+    }
+
+    synchronized long getOdexCheckSum(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null ? Constants.NO_VALUE : record.odexCheckSum;
+    }
+
+    synchronized long getOdexTime(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null ? Constants.NO_VALUE : record.odexTime;
+    }
+
+    synchronized void putOdexInfo(int secondaryNumber, long checkSum, long time) {
+        DexRecord record = getRecord(secondaryNumber, true);
+        record.odexCheckSum = checkSum;
+        record.odexTime = time;
+        mChanged = true;
+    }
+
+    synchronized long getEntrySize(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record == null ? Constants.NO_VALUE : record.entrySize;
+    }
+
+    /**
+     * @return true if cached files of the dex are extracted from an entry with the same crc and size.
+     */
+    synchronized boolean isSameEntry(int secondaryNumber, ZipIndex.DexEntry dexEntry) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        return record != null && record.type != Constants.LOAD_TYPE_INVALID
+                && record.entryCrc == dexEntry.crc && record.entrySize == dexEntry.size;
+    }
+
+    /**
+     * Record of the dex is reset, since its cached files will be extracted from the entry again.
+     */
+    synchronized void resetRecord(int secondaryNumber, ZipIndex.DexEntry dexEntry) {
+        DexRecord record = new DexRecord();
+        record.entryCrc = dexEntry.crc;
+        record.entrySize = dexEntry.size;
+        getRecord(secondaryNumber, true);
+        mDexRecordList.set(secondaryNumber - 2, record);
+        mChanged = true;
+    }
+
+    /**
+     * Record of the dex is invalid, so that its cached files are not trusted and extracted again.
+     */
+    synchronized void quarantine(int secondaryNumber) {
+        DexRecord record = getRecord(secondaryNumber, false);
+        if (record == null) {
+            return;
+        }
+        DexRecord invalidRecord = new DexRecord();
+        invalidRecord.entryCrc = record.entryCrc;
+        invalidRecord.entrySize = record.entrySize;
+        mDexRecordList.set(secondaryNumber - 2, invalidRecord);
+        mChanged = true;
+    }
+
+    /**
+     * Drop records of dexes numbered after dexNumber.
+     */
+    synchronized void trimRecords(int dexNumber) {
+        while (mDexRecordList.size() > Math.max(dexNumber - 1, 0)) {
+            mDexRecordList.remove(mDexRecordList.size() - 1);
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Only clear records in memory, the file is kept until next commit.
+     */
+    synchronized void clear() {
+        mApkTimeStamp = Constants.NO_VALUE;
+        mApkCrc = Constants.NO_VALUE;
+        mApkFingerprint = Constants.NO_VALUE;
+        mDexNumber = 0;
+        mDexRecordList.clear();
+        mChanged = true;
+    }
+
+    /**
+     * Write all records into a temp file and sync it, then rename it to the manifest,
+     * so that the manifest is either the old one or the new one if the process dies.
+     * Nothing is written if no record is changed since it is loaded or committed.
+     * @return whether the manifest is written.
+     */
+    synchronized boolean commit() throws IOException {
+        if (!mChanged) {
+            return false;
+        }
+
+        Utility.writeChecksummedFile(mFile, MAGIC, VERSION, toBody());
+        mChanged = false;
+        return true;
+    }
+
+    /**
+     * Write records of the dexes into the manifest file, records of other dexes are kept as they are
+     * in the file, which may be changed by optimizing process since this is loaded.
+     * Caller must hold the install lock.
+     */
+    synchronized void commitRecords(Collection<Integer> secondaryNumbers) throws IOException {
+        InstallManifest fileManifest = read(mFile);
+        for (int secondaryNumber : secondaryNumbers) {
+            DexRecord record = getRecord(secondaryNumber, false);
+            if (record != null) {
+                fileManifest.getRecord(secondaryNumber, true);
+                fileManifest.mDexRecordList.set(secondaryNumber - 2, record.copy());
+                fileManifest.mChanged = true;
+            }
+        }
+        fileManifest.commit();
+    }
+
+    private DexRecord getRecord(int secondaryNumber, boolean create) {
+        int index = secondaryNumber - 2;
+        if (index < 0) {
+            throw new IllegalArgumentException("Invalid secondary number " + secondaryNumber);
+        }
+
+        if (index >= mDexRecordList.size()) {
+            if (!create) {
+                return null;
+            }
+            while (index >= mDexRecordList.size()) {
+                mDexRecordList.add(new DexRecord());
+            }
+        }
+        return mDexRecordList.get(index);
+    }
+
+    private void readRecords() throws IOException {
+        ByteBuffer buffer = Utility.readChecksummedFile(mFile, MAGIC);
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown manifest version " + version);
+        }
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Invalid manifest length " + buffer.limit());
+        }
+
+        mApkTimeStamp = buffer.getLong();
+        mApkCrc = buffer.getLong();
+        mApkFingerprint = buffer.getLong();
+        mDexNumber = buffer.getInt();
+        int recordCount = buffer.getInt();
+        if (recordCount < 0 || (long) recordCount * RECORD_SIZE != buffer.remaining()) {
+            throw new IOException("Invalid manifest record count " + recordCount);
+        }
+
+        for (int i = 0; i < recordCount; i++) {
+            DexRecord record = new DexRecord();
+            record.type = buffer.getInt();
+            record.dexCheckSum = buffer.getLong();
+            record.dexTime = buffer.getLong();
+            record.odexCheckSum = buffer.getLong();
+            record.odexTime = buffer.getLong();
+            record.entryCrc = buffer.getLong();
+            record.entrySize = buffer.getLong();
+            mDexRecordList.add(record);
+        }
+    }
+
+    private byte[] toBody() {
+        int recordCount = mDexRecordList.size();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + recordCount * RECORD_SIZE);
+        buffer.putLong(mApkTimeStamp);
+        buffer.putLong(mApkCrc);
+        buffer.putLong(mApkFingerprint);
+        buffer.putInt(mDexNumber);
+        buffer.putInt(recordCount);
+        for (DexRecord record : mDexRecordList) {
+            buffer.putInt(record.type);
+            buffer.putLong(record.dexCheckSum);
+            buffer.putLong(record.dexTime);
+            buffer.putLong(record.odexCheckSum);
+            buffer.putLong(record.odexTime);
+            buffer.putLong(record.entryCrc);
+            buffer.putLong(record.entrySize);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Records of installations before the manifest are kept in preferences. They are moved
+     * into the manifest once, and the preferences file is deleted after that.
+     */
+    @SuppressLint("ApplySharedPref")
+    private void migrateFromPreferences(Context context) {
+        File prefsFile = new File(new File(context.getApplicationInfo().dataDir, "shared_prefs"),
+                Constants.PREFS_FILE + ".xml");
+        if (!prefsFile.exists()) {
+            return;
+        }
+
+        SharedPreferences preferences = context.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
+        int dexNumber = preferences.getInt(Constants.KEY_DEX_NUMBER, 0);
+        putApkInfo(dexNumber,
+                preferences.getLong(Constants.KEY_TIME_STAMP, Constants.NO_VALUE),
+                preferences.getLong(Constants.KEY_CRC, Constants.NO_VALUE));
+        for (int secondaryNumber = 2; secondaryNumber <= dexNumber; secondaryNumber++) {
+            putType(secondaryNumber, preferences.getInt(Constants.KEY_DEX_OBJ_TYPE + secondaryNumber,
+                    Constants.LOAD_TYPE_INVALID));
+            putDexInfo(secondaryNumber,
+                    preferences.getLong(Constants.KEY_DEX_CHECKSUM + secondaryNumber, Constants.NO_VALUE),
+                    preferences.getLong(Constants.KEY_DEX_TIME + secondaryNumber, Constants.NO_VALUE));
+            putOdexInfo(secondaryNumber,
+                    preferences.getLong(Constants.KEY_ODEX_CHECKSUM + secondaryNumber, Constants.NO_VALUE),
+                    preferences.getLong(Constants.KEY_ODEX_TIME + secondaryNumber, Constants.NO_VALUE));
+        }
+
+        try {
+            commit();
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to commit migrated manifest", e);
+            return;
+        }
+
+        preferences.edit().clear().commit();
+        if (!prefsFile.delete()) {
+            Monitor.get().logWarning("Fail to delete preferences " + prefsFile.getPath());
+        }
+        Monitor.get().logInfo("Migrate records from preferences, " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("time stamp: ").append(mApkTimeStamp)
+                .append(", crc: ").append(mApkCrc)
+                .append(", fingerprint: ").append(mApkFingerprint)
+                .append(", dex number: ").append(mDexNumber);
+        for (int i = 0; i < mDexRecordList.size(); i++) {
+            DexRecord record = mDexRecordList.get(i);
+            builder.append(", [").append(i + 2)
+                    .append(" type: ").append(record.type)
+                    .append(", dex: ").append(record.dexCheckSum).append('/').append(record.dexTime)
+                    .append(", odex: ").append(record.odexCheckSum).append('/').append(record.odexTime)
+                    .append(", entry: ").append(record.entryCrc).append('/').append(record.entrySize)
+                    .append(']');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,227 @@
+package com.bytedance.boost_multidex;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spans of installation and optimization phases, emitted to {@link Trace} where it is available,
+ * and written to a file in chrome trace format, which is opened by chrome://tracing or perfetto.
+ *
+ * Spans are begun and ended in the same thread, nested ones in the reverse order.
+ */
+final class InstallTracer {
+    private static final String CATEGORY = "boost_multidex";
+
+    private static final int NO_DEX = -1;
+
+    /**
+     * Names of phases timed in native code, in the order of their times.
+     */
+    private static final String[] NATIVE_PHASE_NAMES = {"native map dex", "native open dex", "native attach dex"};
+
+    private static final Span DISABLED = new Span(null, NO_DEX);
+
+    private static volatile boolean sEnabled;
+    private static final List<Span> sSpans = new ArrayList<>();
+    private static final Map<Long, String> sThreadNames = new HashMap<>();
+
+    private InstallTracer() {
+    }
+
+    /**
+     * Spans recorded before are dropped.
+     */
+    static void start(boolean enabled) {
+        synchronized (sSpans) {
+            sSpans.clear();
+            sThreadNames.clear();
+        }
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static Span begin(String name) {
+        return begin(name, NO_DEX);
+    }
+
+    /**
+     * @param dexNumber number of the dex the span is of, or NO_DEX.
+     */
+    static Span begin(String name, int dexNumber) {
+        if (!sEnabled) {
+            return DISABLED;
+        }
+        if (Build.VERSION.SDK_INT >= 18) {
+            Trace.beginSection(dexNumber == NO_DEX ? name : name + " " + dexNumber);
+        }
+        return new Span(name, dexNumber);
+    }
+
+    /**
+     * Spans of phases of the last native loading in this thread, whose times are taken from the same
+     * monotonic clock as {@link System#nanoTime}.
+     */
+    static void addNativeSpans() {
+        if (!sEnabled) {
+            return;
+        }
+
+        long[] times = new long[NATIVE_PHASE_NAMES.length * 2];
+        try {
+            BoostNative.obtainPhaseTimes(times);
+        } catch (UnsatisfiedLinkError e) {
+            return;
+        }
+        for (int i = 0; i < NATIVE_PHASE_NAMES.length; i++) {
+            long start = times[i * 2];
+            long end = times[i * 2 + 1];
+            // a phase not reached, or broken by a recovered crash, is not complete
+            if (start > 0 && end >= start) {
+                add(new Span(NATIVE_PHASE_NAMES[i], NO_DEX, start, end));
+            }
+        }
+    }
+
+    private static void add(Span span) {
+        Thread thread = Thread.currentThread();
+        synchronized (sSpans) {
+            if (sSpans.size() >= Constants.INSTALL_TRACE_CAPACITY) {
+                return;
+            }
+            sSpans.add(span);
+            if (!sThreadNames.containsKey(span.mThreadId)) {
+                sThreadNames.put(span.mThreadId, thread.getName());
+            }
+        }
+    }
+
+    /**
+     * Write spans ended until now, and stop tracing.
+     */
+    static void write(File file) {
+        if (!sEnabled) {
+            return;
+        }
+        sEnabled = false;
+
+        List<Span> spans;
+        Map<Long, String> threadNames;
+        synchronized (sSpans) {
+            spans = new ArrayList<>(sSpans);
+            threadNames = new HashMap<>(sThreadNames);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            writeTrace(writer, spans, threadNames);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                        "\" to \"" + file.getAbsolutePath() + "\"");
+            }
+            Monitor.get().logInfo("Write {} spans to {}", spans.size(), file);
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to write trace", e);
+            tmp.delete(); // return status ignored
+        } finally {
+            Utility.closeQuietly(writer);
+        }
+    }
+
+    private static void writeTrace(Writer writer, List<Span> spans, Map<Long, String> threadNames)
+            throws IOException {
+        int pid = Process.myPid();
+        writer.write("{\"traceEvents\":[\n");
+        boolean first = true;
+        for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+            if (!first) {
+                writer.write(",\n");
+            }
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + entry.getKey()
+                    + ",\"args\":{\"name\":\"" + escape(entry.getValue()) + "\"}}");
+        }
+        for (Span span : spans) {
+            if (!first) {
+                writer.write(",\n");
+            }
+            first = false;
+            // microseconds with fractions, as chrome trace takes
+            writer.write("{\"name\":\"" + escape(span.mName) + "\",\"cat\":\"" + CATEGORY
+                    + "\",\"ph\":\"X\",\"ts\":" + span.mStart / 1000 + "." + formatFraction(span.mStart)
+                    + ",\"dur\":" + (span.mEnd - span.mStart) / 1000 + "." + formatFraction(span.mEnd - span.mStart)
+                    + ",\"pid\":" + pid + ",\"tid\":" + span.mThreadId
+                    + (span.mDexNumber == NO_DEX ? "" : ",\"args\":{\"dex\":" + span.mDexNumber + "}")
+                    + "}");
+        }
+        writer.write("\n]}\n");
+    }
+
+    private static String formatFraction(long nanos) {
+        long fraction = nanos % 1000;
+        return fraction < 10 ? "00" + fraction : fraction < 100 ? "0" + fraction : String.valueOf(fraction);
+    }
+
+    private static String escape(String text) {
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static final class Span {
+        private final String mName;
+        private final int mDexNumber;
+        private final long mThreadId;
+        private final long mStart;
+        private long mEnd;
+
+        private Span(String name, int dexNumber) {
+            this(name, dexNumber, System.nanoTime(), 0);
+        }
+
+        private Span(String name, int dexNumber, long start, long end) {
+            mName = name;
+            mDexNumber = dexNumber;
+            mThreadId = Thread.currentThread().getId();
+            mStart = start;
+            mEnd = end;
+        }
+
+        void end() {
+            if (this == DISABLED) {
+                return;
+            }
+            mEnd = System.nanoTime();
+            if (Build.VERSION.SDK_INT >= 18) {
+                Trace.endSection();
+            }
+            add(this);
+        }
+    }
+}
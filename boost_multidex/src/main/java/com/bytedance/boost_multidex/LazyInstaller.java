@@ -0,0 +1,212 @@
+package com.bytedance.boost_multidex;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Installs secondary dexes not needed at startup on first use of their classes.
+ *
+ * A loader is inserted as the parent of the app class loader, whose {@link ClassLoader#findClass} is called
+ * when a class is loaded at the first time and not found in boot class path, just before the app class
+ * loader looks up it in dex elements. The dexes containing its package are appended to dex elements
+ * there, so that the class is found by the app class loader as usual. The class map is keyed by package,
+ * so a class installs all dexes sharing its package, not only the one defining it.
+ */
+class LazyInstaller {
+    private final boolean[] mStartupDexes;
+    private final DexClassMap mClassMap;
+    private final Map<Integer, DexHolder> mPendingHolders = new TreeMap<>();
+    /* dexes loaded by a fallback holder, whose records are changed after the manifest is committed */
+    private final Set<Integer> mChangedRecords = new TreeSet<>();
+
+    private DexLoader mDexLoader;
+    private InstallManifest mManifest;
+    private File mRootDir;
+    private Object mDexPathList;
+    private List<Object> mDexFileList;
+
+    private ClassLoader mLoader;
+    private InstallClassLoader mInstallLoader;
+
+    private volatile boolean mDrained;
+
+    LazyInstaller(int[] startupDexNumbers, int totalDexNum, DexClassMap classMap) {
+        mStartupDexes = new boolean[totalDexNum + 1];
+        for (int dexNumber : startupDexNumbers) {
+            if (dexNumber > 0 && dexNumber <= totalDexNum) {
+                mStartupDexes[dexNumber] = true;
+            }
+        }
+        mClassMap = classMap;
+    }
+
+    boolean isLazy(int secondaryNumber) {
+        return secondaryNumber >= mStartupDexes.length || !mStartupDexes[secondaryNumber];
+    }
+
+    synchronized void addPending(int secondaryNumber, DexHolder dexHolder) {
+        mPendingHolders.put(secondaryNumber, dexHolder);
+    }
+
+    synchronized int getPendingCount() {
+        return mPendingHolders.size();
+    }
+
+    /**
+     * Start installing pending dexes on demand, after startup dexes are installed.
+     * @param dexFileList dex files of all dexes in dex order, the lazy ones are put once loaded.
+     */
+    void attach(ClassLoader loader, DexLoader dexLoader, InstallManifest manifest, File rootDir,
+                List<Object> dexFileList) throws Exception {
+        synchronized (this) {
+            mDexLoader = dexLoader;
+            mManifest = manifest;
+            mRootDir = rootDir;
+            mDexPathList = DexLoader.obtainDexPathList(loader);
+            mDexFileList = dexFileList;
+        }
+
+        if (getPendingCount() == 0) {
+            mDrained = true;
+            return;
+        }
+
+        Field parentField = Utility.findFieldRecursively(loader.getClass(), "parent");
+        InstallClassLoader installLoader = new InstallClassLoader(loader.getParent(), this);
+        synchronized (this) {
+            mLoader = loader;
+            mInstallLoader = installLoader;
+        }
+        parentField.set(loader, installLoader);
+        Monitor.get().logInfo("Install {} dexes lazily", getPendingCount());
+    }
+
+    /**
+     * Install all pending dexes, called in background once startup is finished.
+     * The original parent is restored then, unless another loader is inserted as the parent since.
+     * Records changed by lazy installations are committed at last.
+     */
+    void installAll() {
+        List<Integer> pendingNumbers;
+        synchronized (this) {
+            pendingNumbers = new ArrayList<>(mPendingHolders.keySet());
+        }
+        for (int secondaryNumber : pendingNumbers) {
+            installDex(secondaryNumber);
+        }
+        mDrained = true;
+        Monitor.get().logInfo("Install all lazy dexes");
+
+        synchronized (this) {
+            if (mInstallLoader != null) {
+                try {
+                    Utility.removeParentLoader(mLoader, mInstallLoader);
+                } catch (Throwable e) {
+                    Monitor.get().logWarning("Fail to detach lazy installer", e);
+                }
+                mInstallLoader = null;
+            }
+        }
+        commitChangedRecords();
+    }
+
+    /**
+     * The install lock may be held by optimizing process for long, so it is not waited for with this locked.
+     */
+    private void commitChangedRecords() {
+        List<Integer> changedRecords;
+        synchronized (this) {
+            if (mChangedRecords.isEmpty()) {
+                return;
+            }
+            changedRecords = new ArrayList<>(mChangedRecords);
+            mChangedRecords.clear();
+        }
+
+        Locker locker = new Locker(new File(mRootDir, Constants.LOCK_INSTALL_FILENAME));
+        try {
+            locker.lock();
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to lock for lazy records", e);
+            return;
+        }
+        try {
+            mManifest.commitRecords(changedRecords);
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to commit lazy records", e);
+        } finally {
+            locker.close();
+        }
+    }
+
+    private synchronized void installDex(int secondaryNumber) {
+        DexHolder dexHolder = mPendingHolders.remove(secondaryNumber);
+        if (dexHolder == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        InstallTracer.Span span = InstallTracer.begin("load lazily", secondaryNumber);
+        try {
+            List<Object> elements = new ArrayList<>(1);
+            DexHolder loadedHolder = mDexLoader.makeDexElement(dexHolder, mManifest, elements);
+            Utility.expandFieldArray(mDexPathList, "dexElements", elements.toArray());
+            mDexFileList.set(secondaryNumber - 2, loadedHolder.mDexFile);
+            if (loadedHolder != dexHolder) {
+                mChangedRecords.add(secondaryNumber);
+            }
+        } catch (Throwable e) {
+            // classes of the dex are not found then, as if it is not in apk
+            Monitor.get().logError("Fail to install lazy dex " + secondaryNumber, e);
+            Result.get().addUnFatalThrowable(e);
+            return;
+        } finally {
+            span.end();
+        }
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Install lazy dex " + secondaryNumber
+                    + ", cost " + (System.nanoTime() - start) / 1_000_000 + "ms");
+        }
+    }
+
+    private static class InstallClassLoader extends ClassLoader {
+        /**
+         * Thrown to the app class loader which only ignores it, so it is shared without stack trace.
+         */
+        private static final ClassNotFoundException NOT_FOUND = new ClassNotFoundException() {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+        };
+
+        private final LazyInstaller mInstaller;
+
+        InstallClassLoader(ClassLoader parent, LazyInstaller installer) {
+            super(parent);
+            mInstaller = installer;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (!mInstaller.mDrained) {
+                int[] dexNumbers = mInstaller.mClassMap.getDexNumbers(name);
+                if (dexNumbers != null) {
+                    for (int dexNumber : dexNumbers) {
+                        mInstaller.installDex(dexNumber);
+                    }
+                }
+            }
+            throw NOT_FOUND;
+        }
+    }
+}
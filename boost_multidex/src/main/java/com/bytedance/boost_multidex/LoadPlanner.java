@@ -0,0 +1,257 @@
+package com.bytedance.boost_multidex;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chooses load type of a dex by costs of operations measured on this device, which are learned
+ * from every installation and optimization, and kept in nanoseconds per byte of dex.
+ *
+ * Layout: magic, version, operation count, each operation with its cost and sample count,
+ * and crc32 of all bytes before it.
+ */
+class LoadPlanner {
+    private static final int MAGIC = 0x424d4c50;
+    private static final int VERSION = 1;
+
+    static final int OP_NONE = -1;
+    /* dex entry read into bytes */
+    static final int OP_INFLATE = 0;
+    /* dex entry written to a dex file, inflated if it is compressed */
+    static final int OP_EXTRACT = 1;
+    /* dex entry written to a zip file */
+    static final int OP_STORE_ZIP = 2;
+    /* dex loaded by BoostNative without optimization */
+    static final int OP_LOAD_DIRECT = 3;
+    /* dex loaded by DexFile.loadDex with a valid odex */
+    static final int OP_LOAD_ODEX = 4;
+    /* dex optimized by dexopt */
+    static final int OP_DEXOPT = 5;
+    private static final int OP_COUNT = 6;
+
+    private static final String[] OP_NAMES = {
+            "inflate", "extract", "store zip", "load direct", "load odex", "dexopt"
+    };
+
+    /**
+     * Rough costs of a middle-end device, only used until an operation is measured.
+     */
+    private static final float[] DEFAULT_COSTS = {10f, 15f, 40f, 8f, 1f, 200f};
+
+    /**
+     * Weight of a new sample, so that costs follow changes of the device, such as its storage getting full.
+     */
+    private static final float SAMPLE_WEIGHT = 0.3f;
+
+    /**
+     * Relative change of a cost since it is committed, below which it is not worth writing the file
+     * in a launch which writes nothing else.
+     */
+    private static final float COMMIT_THRESHOLD = 0.1f;
+
+    private final float[] mCosts;
+    private final int[] mSampleCounts;
+    private final float[] mCommittedCosts;
+    private boolean mRecorded;
+    private boolean mChanged;
+
+    private LoadPlanner(float[] costs, int[] sampleCounts) {
+        mCosts = costs;
+        mSampleCounts = sampleCounts;
+        mCommittedCosts = Arrays.copyOf(costs, costs.length);
+    }
+
+    /**
+     * @return a planner with default costs if there is no valid record.
+     */
+    static LoadPlanner load(File rootDir) {
+        File file = new File(rootDir, Constants.LOAD_COST_FILENAME);
+        if (file.exists()) {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                Monitor.get().logWarning("Fail to read load costs", e);
+            }
+        }
+        return new LoadPlanner(Arrays.copyOf(DEFAULT_COSTS, OP_COUNT), new int[OP_COUNT]);
+    }
+
+    /**
+     * Only types possible with current resources are compared.
+     * @param isMapped true if the dex is mapped from apk as ApkBuffer, without being read.
+     * @param isSpaceEnough false if the dex can not be written to files other than the smallest ones.
+     * @return load type predicted to be fastest at startup.
+     */
+    synchronized int planNewDex(long size, boolean isMapped, boolean isFastLoad, boolean isSpaceEnough) {
+        int type;
+        if (isFastLoad) {
+            if (!isSpaceEnough) {
+                type = Constants.LOAD_TYPE_APK_BUF;
+            } else {
+                long apkBufCost = predict(isMapped ? OP_NONE : OP_INFLATE, OP_LOAD_DIRECT, size);
+                long dexBufCost = predict(OP_EXTRACT, OP_LOAD_DIRECT, size);
+                type = apkBufCost <= dexBufCost ? Constants.LOAD_TYPE_APK_BUF : Constants.LOAD_TYPE_DEX_BUF;
+            }
+        } else {
+            if (!isSpaceEnough) {
+                type = Constants.LOAD_TYPE_ZIP_OPT;
+            } else {
+                long dexOptCost = predict(OP_EXTRACT, OP_DEXOPT, size);
+                long zipOptCost = predict(OP_STORE_ZIP, OP_DEXOPT, size);
+                type = dexOptCost <= zipOptCost ? Constants.LOAD_TYPE_DEX_OPT : Constants.LOAD_TYPE_ZIP_OPT;
+            }
+        }
+        if (Monitor.get().isLoggable(Log.DEBUG)) {
+            Monitor.get().logDebug("Plan type " + type + " of dex size " + size + ", mapped " + isMapped
+                    + ", fast load " + isFastLoad + ", space enough " + isSpaceEnough);
+        }
+        return type;
+    }
+
+    /**
+     * @return predicted nanoseconds of producing and loading a dex of the size.
+     */
+    synchronized long predict(int produceOp, int loadOp, long size) {
+        float cost = 0;
+        if (produceOp != OP_NONE) {
+            cost += mCosts[produceOp];
+        }
+        if (loadOp != OP_NONE) {
+            cost += mCosts[loadOp];
+        }
+        return (long) (cost * size);
+    }
+
+    /**
+     * Costs are only committed if an operation is measured at the first time, moved by more than
+     * {@link #COMMIT_THRESHOLD}, or the launch writes other files anyway, see {@link #commit}.
+     * So that a warm launch does not write the file for noise of its measurements.
+     */
+    synchronized void record(int op, long size, long nanos) {
+        if (op == OP_NONE || size <= 0 || nanos <= 0) {
+            return;
+        }
+
+        float cost = (float) nanos / size;
+        boolean isFirst = mSampleCounts[op] == 0;
+        mCosts[op] = isFirst ? cost : mCosts[op] + (cost - mCosts[op]) * SAMPLE_WEIGHT;
+        mSampleCounts[op]++;
+        mRecorded = true;
+        if (isFirst || Math.abs(mCosts[op] - mCommittedCosts[op]) > mCommittedCosts[op] * COMMIT_THRESHOLD) {
+            mChanged = true;
+        }
+    }
+
+    /**
+     * Predictions of the holders are put into the result against their costs, and costs are
+     * learned from them then. Holders not loaded yet, which are lazy ones, are skipped.
+     * @param dexHolderList holders in dex order from classes2.dex.
+     */
+    void reportAndRecord(List<DexHolder> dexHolderList, InstallManifest manifest, Result result) {
+        long[] sizes = new long[dexHolderList.size()];
+        for (int i = 0; i < dexHolderList.size(); i++) {
+            DexHolder dexHolder = dexHolderList.get(i);
+            int secondaryNumber = i + 2;
+            sizes[i] = dexHolder.mLoadCost == Constants.NO_VALUE
+                    ? Constants.NO_VALUE : manifest.getEntrySize(secondaryNumber);
+            if (sizes[i] == Constants.NO_VALUE) {
+                continue;
+            }
+
+            long predictedCost = predict(dexHolder.mProduceOp, dexHolder.mLoadOp, sizes[i]);
+            long actualCost = dexHolder.mProduceCost + dexHolder.mLoadCost;
+            result.predictedLoadCost += predictedCost;
+            result.actualLoadCost += actualCost;
+            result.addLoadPlan("dex " + secondaryNumber + ": " + obtainOpName(dexHolder.mProduceOp)
+                    + " and " + obtainOpName(dexHolder.mLoadOp) + ", size " + sizes[i]
+                    + ", predicted " + predictedCost / 1000 + "us, actual " + actualCost / 1000 + "us");
+        }
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Load predicted " + result.predictedLoadCost / 1000 + "us, actual "
+                    + result.actualLoadCost / 1000 + "us, costs " + this);
+        }
+
+        // all predictions are made by costs before this installation
+        for (int i = 0; i < dexHolderList.size(); i++) {
+            DexHolder dexHolder = dexHolderList.get(i);
+            if (sizes[i] == Constants.NO_VALUE) {
+                continue;
+            }
+            // producing a holder from cache is mostly checking its files, which is not an operation to learn
+            if (dexHolder.mProduceOp != OP_NONE) {
+                record(dexHolder.mProduceOp, sizes[i], dexHolder.mProduceCost);
+            }
+            record(dexHolder.mLoadOp, sizes[i], dexHolder.mLoadCost);
+        }
+    }
+
+    /**
+     * Costs are written only if any of them changed enough, see {@link #record}.
+     * Caller must hold the install lock.
+     * @param force whether to write all samples, for launches writing other files anyway,
+     *              such as a cold installation or the optimizing process.
+     */
+    synchronized void commit(File rootDir, boolean force) {
+        if (!mChanged && !(force && mRecorded)) {
+            return;
+        }
+        try {
+            write(new File(rootDir, Constants.LOAD_COST_FILENAME));
+            System.arraycopy(mCosts, 0, mCommittedCosts, 0, OP_COUNT);
+            mRecorded = false;
+            mChanged = false;
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to write load costs", e);
+        }
+    }
+
+    static String obtainOpName(int op) {
+        return op == OP_NONE ? "cache" : OP_NAMES[op];
+    }
+
+    private static LoadPlanner read(File file) throws IOException {
+        ByteBuffer buffer = Utility.readChecksummedFile(file, MAGIC);
+        if (buffer.getInt() != VERSION || buffer.remaining() != 4 + OP_COUNT * (4 + 4)
+                || buffer.getInt() != OP_COUNT) {
+            throw new IOException("Unknown load costs format");
+        }
+
+        float[] costs = new float[OP_COUNT];
+        int[] sampleCounts = new int[OP_COUNT];
+        for (int i = 0; i < OP_COUNT; i++) {
+            costs[i] = buffer.getFloat();
+            sampleCounts[i] = buffer.getInt();
+            if (!(costs[i] >= 0) || sampleCounts[i] < 0) {
+                throw new IOException("Invalid cost of " + OP_NAMES[i]);
+            }
+        }
+        return new LoadPlanner(costs, sampleCounts);
+    }
+
+    private void write(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + OP_COUNT * (4 + 4));
+        buffer.putInt(OP_COUNT);
+        for (int i = 0; i < OP_COUNT; i++) {
+            buffer.putFloat(mCosts[i]);
+            buffer.putInt(mSampleCounts[i]);
+        }
+        Utility.writeChecksummedFile(file, MAGIC, VERSION, buffer.array());
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < OP_COUNT; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(OP_NAMES[i]).append(": ").append(mCosts[i]).append("ns/B x").append(mSampleCounts[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
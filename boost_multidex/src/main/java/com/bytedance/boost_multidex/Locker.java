@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 
 /**
  * Created by Xiaolin(xiaolin.gan@bytedance.com) on 2019/3/31.
@@ -25,13 +26,13 @@ class Locker {
         try {
             lockChannel = lockRaf.getChannel();
             try {
-                Monitor.get().logInfo("Blocking on lock " + lockFile.getPath());
+                Monitor.get().logInfo("Blocking on lock {}", lockFile);
                 cacheLock = lockChannel.lock();
             } catch (IOException e) {
                 Utility.closeQuietly(lockChannel);
                 throw e;
             }
-            Monitor.get().logInfo("Acquired on lock " + lockFile.getPath());
+            Monitor.get().logInfo("Acquired on lock {}", lockFile);
         } catch (IOException e) {
             Utility.closeQuietly(lockRaf);
             throw e;
@@ -42,14 +43,34 @@ class Locker {
         lockRaf = new RandomAccessFile(lockFile, "rw");
         lockChannel = lockRaf.getChannel();
         try {
-            Monitor.get().logInfo("Blocking on lock " + lockFile.getPath());
+            Monitor.get().logInfo("Blocking on lock {}", lockFile);
             cacheLock = lockChannel.tryLock();
             return cacheLock != null;
         } catch (IOException e) {
-            Monitor.get().logInfo("Aborting on lock " + lockFile.getPath());
+            Monitor.get().logInfo("Aborting on lock {}", lockFile);
             return false;
         } finally {
-            Monitor.get().logInfo("Acquired on lock " + lockFile.getPath());
+            Monitor.get().logInfo("Acquired on lock {}", lockFile);
+        }
+    }
+
+    /**
+     * Test if the lock is held by another process now, without logging and without keeping the lock.
+     */
+    boolean isHeldByOthers() {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(lockFile, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (IOException | OverlappingFileLockException e) {
+            return false;
+        } finally {
+            Utility.closeQuietly(raf);
         }
     }
 
@@ -60,7 +81,7 @@ class Locker {
             } catch (IOException ignored) {
             }
         }
-        Monitor.get().logInfo("Released lock " + lockFile.getPath());
+        Monitor.get().logInfo("Released lock {}", lockFile);
         Utility.closeQuietly(lockChannel);
         Utility.closeQuietly(lockRaf);
     }
@@ -0,0 +1,107 @@
+package com.bytedance.boost_multidex;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Memory all holders of an installation may take, shared by all producing threads.
+ *
+ * An ApkBuffer read from a compressed entry pins the whole dex in java heap until it is loaded,
+ * and dalvik copies every dex loaded from memory into native heap, so a dex is only held as
+ * ApkBuffer if both of them fit in what is left by earlier holders. Otherwise it is spilled to
+ * a file in dex cache, which is mapped rather than held in java heap.
+ */
+class MemoryBudget {
+    private long mJavaBudget;
+    private long mSystemBudget;
+    private final boolean mSpaceLow;
+
+    private MemoryBudget(long javaBudget, long systemBudget, boolean spaceLow) {
+        mJavaBudget = javaBudget;
+        mSystemBudget = systemBudget;
+        mSpaceLow = spaceLow;
+    }
+
+    static MemoryBudget create(Context context) {
+        Runtime runtime = Runtime.getRuntime();
+        long maxMemory = runtime.maxMemory();
+        long javaHeadroom = maxMemory - (runtime.totalMemory() - runtime.freeMemory());
+        // half of java heap at most, which is left for the app anyway
+        long javaBudget = Math.min(javaHeadroom - Constants.JAVA_HEAP_RESERVE, maxMemory / 2);
+
+        long systemBudget = Long.MAX_VALUE;
+        long availMem = Constants.NO_VALUE;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            availMem = memoryInfo.availMem;
+            systemBudget = memoryInfo.lowMemory
+                    ? 0 : memoryInfo.availMem - memoryInfo.threshold - Constants.SYSTEM_MEM_RESERVE;
+        }
+
+        long freeSpace = Environment.getDataDirectory().getFreeSpace();
+        boolean spaceLow = freeSpace < Constants.SPACE_MIN_THRESHOLD;
+
+        if (Monitor.get().isLoggable(Log.INFO)) {
+            Monitor.get().logInfo("Memory budget, java: " + javaBudget + " of max " + maxMemory
+                    + ", system: " + systemBudget + " of available " + availMem + ", free space " + freeSpace);
+        }
+        return new MemoryBudget(Math.max(javaBudget, 0), Math.max(systemBudget, 0), spaceLow);
+    }
+
+    /**
+     * Take memory for an ApkBuffer if there is enough.
+     * @param inJavaHeap false if the dex is mapped from apk rather than read into bytes.
+     * @return true if the dex should be held as ApkBuffer.
+     */
+    synchronized boolean reserveApkBuffer(long size, boolean inJavaHeap) {
+        long javaCost = inJavaHeap ? size : 0;
+        // bytes in java heap are also resident until the dex is loaded
+        long systemCost = size + javaCost;
+
+        boolean reserved = javaCost <= mJavaBudget && systemCost <= mSystemBudget;
+        if (!reserved && mSpaceLow) {
+            Monitor.get().logWarning("Free space is too small, hold dex as ApkBuffer anyway");
+            reserved = true;
+        }
+
+        if (reserved) {
+            charge(javaCost, systemCost);
+        } else {
+            // the spilled dex is also copied by dalvik when it is loaded
+            charge(0, size);
+        }
+        if (Monitor.get().isLoggable(Log.DEBUG)) {
+            Monitor.get().logDebug("Reserve " + size + " bytes, in java heap " + inJavaHeap + ": " + reserved
+                    + ", java budget left " + mJavaBudget + ", system budget left " + mSystemBudget);
+        }
+        return reserved;
+    }
+
+    /**
+     * Take memory for an ApkBuffer which has to be used whether there is enough or not.
+     */
+    synchronized void chargeApkBuffer(long size, boolean inJavaHeap) {
+        long javaCost = inJavaHeap ? size : 0;
+        charge(javaCost, size + javaCost);
+    }
+
+    /**
+     * Take memory for a dex loaded from file, which dalvik copies into native heap.
+     */
+    synchronized void chargeDexBuffer(long size) {
+        charge(0, size);
+    }
+
+    boolean isSpaceLow() {
+        return mSpaceLow;
+    }
+
+    private void charge(long javaCost, long systemCost) {
+        mJavaBudget = Math.max(mJavaBudget - javaCost, 0);
+        mSystemBudget = Math.max(mSystemBudget - systemCost, 0);
+    }
+}
@@ -1,5 +1,7 @@
 package com.bytedance.boost_multidex;
 
+import android.content.Context;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.MessageQueue;
 import android.util.Log;
@@ -7,20 +9,26 @@ import android.util.Log;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Xiaolin(xiaolin.gan@bytedance.com) on 2019/3/3.
  */
 public class Monitor {
-    private static final boolean enableLog = true;
+    /**
+     * Level above all levels of {@link Log}, which turns off logging.
+     */
+    public static final int LOG_LEVEL_OFF = Log.ASSERT + 1;
 
     private static Monitor sMonitor;
 
+    private volatile int mLogLevel = Log.DEBUG;
+
     private ScheduledExecutorService mExecutor = Executors.newScheduledThreadPool(1);
 
     private String mProcessName;
 
+    private Context mOptimizeContext;
+
     static void init(Monitor monitor) {
         sMonitor = monitor != null ? monitor : new Monitor();
     }
@@ -47,12 +55,25 @@ public class Monitor {
         return this;
     }
 
+    /**
+     * Messages below the level are dropped before they are formatted, it can be changed at any time.
+     * @param logLevel one of levels of {@link Log}, or {@link #LOG_LEVEL_OFF}.
+     */
+    public Monitor setLogLevel(int logLevel) {
+        mLogLevel = logLevel;
+        return this;
+    }
+
+    protected boolean isLoggable(int level) {
+        return level >= mLogLevel;
+    }
+
     protected void loadLibrary(String libName) {
         System.loadLibrary(libName);
     }
 
     protected void logError(String msg) {
-        if (!enableLog) {
+        if (!isLoggable(Log.ERROR)) {
             return;
         }
 
@@ -60,7 +81,7 @@ public class Monitor {
     }
 
     protected void logWarning(String msg) {
-        if (!enableLog) {
+        if (!isLoggable(Log.WARN)) {
             return;
         }
 
@@ -68,7 +89,7 @@ public class Monitor {
     }
 
     protected void logInfo(String msg) {
-        if (!enableLog) {
+        if (!isLoggable(Log.INFO)) {
             return;
         }
 
@@ -77,7 +98,7 @@ public class Monitor {
     }
 
     protected void logDebug(String msg) {
-        if (!enableLog) {
+        if (!isLoggable(Log.DEBUG)) {
             return;
         }
 
@@ -86,7 +107,7 @@ public class Monitor {
     }
 
     protected void logError(String msg, Throwable tr) {
-        if (!enableLog) {
+        if (!isLoggable(Log.ERROR)) {
             return;
         }
 
@@ -94,17 +115,154 @@ public class Monitor {
     }
 
     protected void logWarning(String msg, Throwable tr) {
-        if (!enableLog) {
+        if (!isLoggable(Log.WARN)) {
             return;
         }
 
         Log.w(Constants.TAG, msg, tr);
     }
 
+    /*
+     * Messages formatted only if their level is loggable, with each "{}" in format replaced by next argument,
+     * so that nothing is built for a dropped message. Arguments of primitive types are boxed before
+     * the level is checked, callers on hot path check it themselves for them.
+     */
+
+    void logError(String format, Object arg) {
+        if (isLoggable(Log.ERROR)) {
+            logError(formatMessage(format, arg, null, null));
+        }
+    }
+
+    void logWarning(String format, Object arg) {
+        if (isLoggable(Log.WARN)) {
+            logWarning(formatMessage(format, arg, null, null));
+        }
+    }
+
+    void logWarning(String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.WARN)) {
+            logWarning(formatMessage(format, arg1, arg2, null));
+        }
+    }
+
+    void logWarning(String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.WARN)) {
+            logWarning(formatMessage(format, arg1, arg2, arg3));
+        }
+    }
+
+    void logInfo(String format, Object arg) {
+        if (isLoggable(Log.INFO)) {
+            logInfo(formatMessage(format, arg, null, null));
+        }
+    }
+
+    void logInfo(String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.INFO)) {
+            logInfo(formatMessage(format, arg1, arg2, null));
+        }
+    }
+
+    void logInfo(String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.INFO)) {
+            logInfo(formatMessage(format, arg1, arg2, arg3));
+        }
+    }
+
+    void logDebug(String format, Object arg) {
+        if (isLoggable(Log.DEBUG)) {
+            logDebug(formatMessage(format, arg, null, null));
+        }
+    }
+
+    void logDebug(String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            logDebug(formatMessage(format, arg1, arg2, null));
+        }
+    }
+
+    void logDebug(String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.DEBUG)) {
+            logDebug(formatMessage(format, arg1, arg2, arg3));
+        }
+    }
+
+    static String formatMessage(String format, Object arg1, Object arg2, Object arg3) {
+        StringBuilder builder = new StringBuilder(format.length() + 64);
+        int argIndex = 0;
+        int start = 0;
+        int index;
+        while ((index = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, index);
+            if (argIndex == 0) {
+                builder.append(arg1);
+            } else if (argIndex == 1) {
+                builder.append(arg2);
+            } else if (argIndex == 2) {
+                builder.append(arg3);
+            } else {
+                builder.append("{}");
+            }
+            argIndex++;
+            start = index + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
     protected boolean isEnableNativeCheckSum() {
         return true;
     }
 
+    /**
+     * Number of threads used to prepare secondary dex holders in background while installing,
+     * return 1 to prepare them one by one.
+     */
+    protected int getExtractThreadCount() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    }
+
+    /**
+     * Number of threads used to optimize secondary dexes in the optimizing process, which is also
+     * capped by free space and available memory. Return 1 to optimize them one by one.
+     */
+    protected int getOptimizeThreadCount() {
+        return Math.min(Math.max(Runtime.getRuntime().availableProcessors() - 1, 1), 4);
+    }
+
+    /**
+     * Trace classes loaded from installation to idle, and write a profile of them into the root dir.
+     * It is cheap enough for a sample of users, return true for them.
+     */
+    protected boolean isEnableClassLoadTrace() {
+        return false;
+    }
+
+    /**
+     * Trace phases of installation and optimization as spans, which are emitted to systrace, and
+     * written into the root dir in chrome trace format once installation or optimization is finished.
+     */
+    protected boolean isEnableInstallTrace() {
+        return false;
+    }
+
+    /**
+     * Put info of each loaded dex holder into {@link Result#dexInfoList}. Building it costs startup,
+     * return false if it is not reported.
+     */
+    protected boolean isReportDexInfo() {
+        return true;
+    }
+
+    /**
+     * Numbers of secondary dexes installed at startup, such as {2, 3} for classes2.dex and classes3.dex.
+     * Others are installed on first use of their classes, and all of them are installed in background
+     * after startup. Return null to install all dexes at startup.
+     */
+    protected int[] getStartupDexNumbers() {
+        return null;
+    }
+
     protected void logErrorAfterInstall(String msg, Throwable tr) {
         Log.e(Constants.TAG, msg, tr);
     }
@@ -114,19 +272,68 @@ public class Monitor {
                 + ", reduced space: " + reducedSpace + ", holder: " + dexHolderInfo);
     }
 
+    /**
+     * Called in optimizing process before any dex is optimized. By default it waits until the device is
+     * {@link #isReadyToOptimize ready}, or {@link Constants#OPTIMIZE_MAX_WAIT} elapses.
+     * An override replaces the wait.
+     */
     protected void doBeforeHandleOpt() {
         try {
-            Thread.sleep(10_000);
+            new OptimizeScheduler(mOptimizeContext).awaitReady(Constants.OPTIMIZE_MAX_WAIT);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            logWarning("Interrupted while waiting to optimize", e);
         }
     }
 
+    /**
+     * Called by optimizing process, the context is kept for {@link #doBeforeHandleOpt()}
+     * to check battery and screen.
+     */
+    protected void doBeforeHandleOpt(Context context) {
+        mOptimizeContext = context;
+        doBeforeHandleOpt();
+    }
+
+    /**
+     * Work after installation runs once this returns true, or a max delay elapses.
+     * @param cpuLoad busy ratio of all cpus in last interval, -1 if it is unknown.
+     * @param mainThreadLatency milliseconds a message posted to main thread waits to run.
+     */
+    protected boolean isQuietAfterInstall(float cpuLoad, long mainThreadLatency) {
+        return mainThreadLatency < 32 && cpuLoad < 0.7f;
+    }
+
+    /**
+     * Optimization starts, and each dex is optimized, once this returns true or a max delay elapses.
+     * @param cpuLoad busy ratio of all cpus in last interval, -1 if it is unknown.
+     */
+    protected boolean isReadyToOptimize(float cpuLoad, boolean charging, boolean screenOn) {
+        return cpuLoad < (charging || !screenOn ? 0.85f : 0.5f);
+    }
+
+    /**
+     * Dexes are optimized one by one if this returns true, so that the user is not disturbed.
+     */
+    protected boolean isThrottleOptimize(boolean charging, boolean screenOn) {
+        return screenOn && !charging;
+    }
+
     protected void doAfterInstall(final Runnable optRunnable) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            // installed in background, wait for main thread to be idle as well
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    doAfterInstall(optRunnable);
+                }
+            });
+            return;
+        }
+
         Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
             @Override
             public boolean queueIdle() {
-                getExecutor().schedule(optRunnable, 5_000, TimeUnit.MILLISECONDS);
+                OptimizeScheduler.scheduleWhenQuiet(getExecutor(), optRunnable);
                 return false;
             }
         });
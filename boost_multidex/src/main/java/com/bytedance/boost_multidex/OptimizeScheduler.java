@@ -0,0 +1,176 @@
+package com.bytedance.boost_multidex;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when work after installation and optimization run, by load of the device measured
+ * rather than fixed delays. Whether the device is ready is decided by {@link Monitor}.
+ */
+class OptimizeScheduler {
+    private final Context mContext;
+
+    private long mLastCpuTotal = Constants.NO_VALUE;
+    private long mLastCpuIdle = Constants.NO_VALUE;
+
+    OptimizeScheduler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Run the runnable in executor once main thread and cpu are quiet, or the max delay elapses.
+     * Main thread is probed by a message posted to it, whose latency shows how busy it is.
+     */
+    static void scheduleWhenQuiet(final ScheduledExecutorService executor, final Runnable runnable) {
+        final OptimizeScheduler scheduler = new OptimizeScheduler(null);
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final long deadline = SystemClock.uptimeMillis() + Constants.AFTER_INSTALL_MAX_DELAY;
+
+        executor.schedule(new Runnable() {
+            private volatile long mProbeLatency = Constants.NO_VALUE;
+            private volatile long mProbePostTime = Constants.NO_VALUE;
+
+            @Override
+            public void run() {
+                float cpuLoad = scheduler.sampleCpuLoad();
+                long now = SystemClock.uptimeMillis();
+                long probeLatency = mProbeLatency;
+                if (probeLatency == Constants.NO_VALUE && mProbePostTime != Constants.NO_VALUE) {
+                    // probe is still pending, main thread has been busy since it is posted
+                    probeLatency = now - mProbePostTime;
+                }
+                if (now >= deadline
+                        || (probeLatency != Constants.NO_VALUE
+                        && Monitor.get().isQuietAfterInstall(cpuLoad, probeLatency))) {
+                    Monitor.get().logInfo("Run after install, cpu load {}, main thread latency {}",
+                            cpuLoad, probeLatency);
+                    runnable.run();
+                    return;
+                }
+
+                // a new probe is only posted after the last one is handled, the latency is of it alone
+                if (mProbeLatency != Constants.NO_VALUE || mProbePostTime == Constants.NO_VALUE) {
+                    final long postTime = now;
+                    mProbeLatency = Constants.NO_VALUE;
+                    mProbePostTime = postTime;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mProbeLatency = SystemClock.uptimeMillis() - postTime;
+                        }
+                    });
+                }
+                executor.schedule(this, Constants.LOAD_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }, Constants.AFTER_INSTALL_MIN_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Block until the device is ready to optimize, or maxWait elapses.
+     */
+    void awaitReady(long maxWait) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + maxWait;
+        sampleCpuLoad();
+        while (true) {
+            Thread.sleep(Constants.LOAD_CHECK_INTERVAL);
+            float cpuLoad = sampleCpuLoad();
+            boolean charging = isCharging();
+            boolean screenOn = isScreenOn();
+            if (Monitor.get().isReadyToOptimize(cpuLoad, charging, screenOn)) {
+                Monitor.get().logDebug("Ready to optimize, cpu load {}, charging {}, screen on {}",
+                        cpuLoad, charging, screenOn);
+                return;
+            }
+            if (SystemClock.uptimeMillis() >= deadline) {
+                Monitor.get().logInfo("Optimize anyway, cpu load {}, charging {}, screen on {}",
+                        cpuLoad, charging, screenOn);
+                return;
+            }
+        }
+    }
+
+    boolean isThrottled() {
+        return Monitor.get().isThrottleOptimize(isCharging(), isScreenOn());
+    }
+
+    /**
+     * @return busy ratio of all cpus since last sample, or -1 if it is unknown.
+     */
+    synchronized float sampleCpuLoad() {
+        long[] times = readCpuTimes();
+        if (times == null) {
+            return Constants.NO_VALUE;
+        }
+
+        long total = times[0];
+        long idle = times[1];
+        float cpuLoad = Constants.NO_VALUE;
+        if (mLastCpuTotal != Constants.NO_VALUE && total > mLastCpuTotal) {
+            cpuLoad = 1f - (float) (idle - mLastCpuIdle) / (total - mLastCpuTotal);
+        }
+        mLastCpuTotal = total;
+        mLastCpuIdle = idle;
+        return cpuLoad;
+    }
+
+    /**
+     * @return total and idle jiffies of all cpus in /proc/stat, idle includes iowait.
+     */
+    private static long[] readCpuTimes() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/stat"), 256);
+            String line = reader.readLine();
+            if (line == null || !line.startsWith("cpu ")) {
+                return null;
+            }
+
+            String[] fields = line.substring(4).trim().split("\\s+");
+            long total = 0;
+            for (String field : fields) {
+                total += Long.parseLong(field);
+            }
+            long idle = Long.parseLong(fields[3]) + (fields.length > 4 ? Long.parseLong(fields[4]) : 0);
+            return new long[]{total, idle};
+        } catch (IOException | RuntimeException e) {
+            Monitor.get().logDebug("Fail to read cpu times, {}", e);
+            return null;
+        } finally {
+            Utility.closeQuietly(reader);
+        }
+    }
+
+    private boolean isCharging() {
+        if (mContext == null) {
+            return false;
+        }
+        try {
+            Intent intent = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return intent != null && intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        } catch (RuntimeException e) {
+            Monitor.get().logDebug("Fail to get battery state, {}", e);
+            return false;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        if (mContext == null) {
+            return true;
+        }
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager == null || powerManager.isScreenOn();
+    }
+}
@@ -1,16 +1,23 @@
 package com.bytedance.boost_multidex;
 
+import android.app.ActivityManager;
 import android.app.IntentService;
 import android.content.Intent;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.os.Environment;
+import android.os.Process;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class OptimizeService extends IntentService {
     static volatile boolean sAlreadyOpt;
@@ -19,6 +26,7 @@ public class OptimizeService extends IntentService {
     File mDexDir;
     File mOptDexDir;
     File mZipDir;
+    LoadPlanner mLoadPlanner;
 
     public OptimizeService() {
         super("OptimizeService");
@@ -77,14 +85,21 @@ public class OptimizeService extends IntentService {
 
         sAlreadyOpt = true;
 
-        Monitor.get().doBeforeHandleOpt();
-
-        String keyApkDexNum = Constants.KEY_DEX_NUMBER;
+        InstallTracer.start(Monitor.get().isEnableInstallTrace());
+        InstallTracer.Span span = InstallTracer.begin("wait before optimize");
+        try {
+            Monitor.get().doBeforeHandleOpt(this);
+        } finally {
+            span.end();
+        }
 
         Locker locker = new Locker(new File(mRootDir, Constants.LOCK_INSTALL_FILENAME));
 
         locker.lock();
 
+        ApkSession apkSession = null;
+        PreemptWatchdog watchdog = new PreemptWatchdog(new File(mRootDir, Constants.LOCK_PREPARE_FILENAME));
+        watchdog.start();
         try {
             ApplicationInfo applicationInfo = this.getApplicationInfo();
             if (applicationInfo == null) {
@@ -92,87 +107,290 @@ public class OptimizeService extends IntentService {
                         + " BoostMultiDex support library is disabled.");
             }
 
-            File apkFile = new File(applicationInfo.sourceDir);
-
-            SharedPreferences preferences = this.getSharedPreferences(Constants.PREFS_FILE, Context.MODE_PRIVATE);
-            int totalDexNum = preferences.getInt(keyApkDexNum, 0);
-            for (int secondaryNumber = 2; secondaryNumber <= totalDexNum; secondaryNumber++) {
-                int type = preferences.getInt(Constants.KEY_DEX_OBJ_TYPE + secondaryNumber, Constants.LOAD_TYPE_APK_BUF);
-
-                File dexFile = new File(mDexDir, secondaryNumber + Constants.DEX_SUFFIX);
-                File optDexFile = new File(mOptDexDir, secondaryNumber + Constants.ODEX_SUFFIX);
-
-                DexHolder dexHolder;
-                if (type == Constants.LOAD_TYPE_APK_BUF) {
-                    ZipFile apkZipFile = new ZipFile(apkFile);
-                    ZipEntry dexFileEntry = apkZipFile.getEntry(Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX);
-                    byte[] bytes = Utility.obtainEntryBytesInZip(apkZipFile, dexFileEntry);
-                    dexHolder = new DexHolder.ApkBuffer(secondaryNumber, bytes, dexFile, optDexFile);
-                } else if (type == Constants.LOAD_TYPE_DEX_BUF) {
-                    dexHolder = new DexHolder.DexBuffer(secondaryNumber, dexFile, optDexFile);
-                } else if (type == Constants.LOAD_TYPE_DEX_OPT) {
-                    dexHolder = new DexHolder.DexOpt(secondaryNumber, dexFile, optDexFile, false);
-                } else if (type == Constants.LOAD_TYPE_ZIP_OPT) {
-                    File zipFile = new File(mZipDir, secondaryNumber + Constants.ZIP_SUFFIX);
-                    File zipOptFile = new File(mZipDir, secondaryNumber + Constants.ODEX_SUFFIX);
-                    dexHolder = new DexHolder.ZipOpt(secondaryNumber, zipFile, zipOptFile);
-                } else {
-                    dexHolder = null;
+            apkSession = new ApkSession(new File(applicationInfo.sourceDir));
+
+            final InstallManifest manifest = InstallManifest.load(this, mRootDir);
+            mLoadPlanner = LoadPlanner.load(mRootDir);
+            int totalDexNum = manifest.getDexNumber();
+            final OptimizeScheduler scheduler = new OptimizeScheduler(this);
+            int threadCount = scheduler.isThrottled() ? 1 : obtainOptimizeThreadCount(totalDexNum - 1);
+            Monitor.get().logInfo("Optimize {} dexes in {} threads", totalDexNum - 1, threadCount);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            final ApkSession session = apkSession;
+            final AtomicBoolean stopped = new AtomicBoolean();
+            try {
+                for (final int dexNumber : obtainOptimizeOrder(manifest, totalDexNum)) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (stopped.get()) {
+                                return;
+                            }
+                            InstallTracer.Span span = InstallTracer.begin("wait ready", dexNumber);
+                            try {
+                                scheduler.awaitReady(Constants.OPTIMIZE_DEX_MAX_WAIT);
+                            } catch (InterruptedException e) {
+                                stopped.set(true);
+                                return;
+                            } finally {
+                                span.end();
+                            }
+                            span = InstallTracer.begin("optimize", dexNumber);
+                            try {
+                                if (!optimizeDex(dexNumber, manifest, session)) {
+                                    stopped.set(true);
+                                }
+                            } finally {
+                                span.end();
+                            }
+                        }
+                    });
                 }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Failed to install extracted secondary dex files", e);
+        } finally {
+            watchdog.interrupt();
+            if (apkSession != null) {
+                apkSession.close();
+            }
+            if (mLoadPlanner != null) {
+                mLoadPlanner.commit(mRootDir, true);
+            }
+            InstallTracer.write(new File(mRootDir, Constants.OPTIMIZE_TRACE_FILENAME));
+            locker.close();
+            Monitor.get().logInfo("Exit quietly");
+            stopSelf();
+            System.exit(0);
+        }
+    }
 
-                Monitor.get().logInfo("Process beginning holder " + dexHolder.toString() + ", type: " + type);
+    /**
+     * Dexes are made faster one by one in a thread, and at most one dexopt runs in a thread,
+     * so that the number of threads caps the space and the memory used at the same time.
+     */
+    private int obtainOptimizeThreadCount(int dexCount) {
+        int threadCount = Math.min(Monitor.get().getOptimizeThreadCount(), dexCount);
+
+        long freeSpace = Environment.getDataDirectory().getFreeSpace();
+        threadCount = (int) Math.min(threadCount,
+                (freeSpace - Constants.SPACE_MIN_THRESHOLD) / Constants.OPT_SPACE_PER_THREAD);
+
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+            activityManager.getMemoryInfo(memoryInfo);
+            if (memoryInfo.lowMemory) {
+                threadCount = 1;
+            } else {
+                threadCount = (int) Math.min(threadCount,
+                        (memoryInfo.availMem - memoryInfo.threshold) / Constants.OPT_MEM_PER_THREAD);
+            }
+            Monitor.get().logInfo("Free space {}, available memory {}, low memory {}",
+                    freeSpace, memoryInfo.availMem, memoryInfo.lowMemory);
+        }
 
-                DexHolder fasterHolder = dexHolder;
+        return Math.max(threadCount, 1);
+    }
 
-                while (fasterHolder != null) {
-                    long freeSpace = Environment.getDataDirectory().getFreeSpace();
-                    if (freeSpace < Constants.SPACE_MIN_THRESHOLD) {
-                        Monitor.get().logWarning("Free space is too small: " + freeSpace
-                                + ", compare to " + Constants.SPACE_THRESHOLD);
-                        return;
-                    } else {
-                        Monitor.get().logInfo("Free space is enough: " + freeSpace + ", continue...");
+    /**
+     * Dexes whose classes are loaded earlier in the last traced launch are optimized first, then
+     * the ones with more classes loaded at startup, and the smaller one first if they are the same,
+     * which is faster to dexopt. So that an interrupted optimization still makes the most of startup faster.
+     */
+    private List<Integer> obtainOptimizeOrder(final InstallManifest manifest, int totalDexNum) {
+        final ClassLoadProfile profile = obtainClassLoadProfile(totalDexNum);
+        List<Integer> order = new ArrayList<>();
+        for (int secondaryNumber = 2; secondaryNumber <= totalDexNum; secondaryNumber++) {
+            order.add(secondaryNumber);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                if (profile != null) {
+                    long lhsTime = obtainTimeForOrder(profile.firstLoadTimes[lhs - 1]);
+                    long rhsTime = obtainTimeForOrder(profile.firstLoadTimes[rhs - 1]);
+                    if (lhsTime != rhsTime) {
+                        return lhsTime < rhsTime ? -1 : 1;
                     }
+                    int lhsCount = profile.classCounts[lhs - 1];
+                    int rhsCount = profile.classCounts[rhs - 1];
+                    if (lhsCount != rhsCount) {
+                        return lhsCount > rhsCount ? -1 : 1;
+                    }
+                }
+                long lhsSize = obtainSizeForOrder(manifest.getEntrySize(lhs));
+                long rhsSize = obtainSizeForOrder(manifest.getEntrySize(rhs));
+                if (lhsSize != rhsSize) {
+                    return lhsSize < rhsSize ? -1 : 1;
+                }
+                return lhs.compareTo(rhs);
+            }
+        });
+        Monitor.get().logInfo("Optimize order {}", order);
+        return order;
+    }
+
+    private static long obtainSizeForOrder(long entrySize) {
+        return entrySize == Constants.NO_VALUE ? Long.MAX_VALUE : entrySize;
+    }
+
+    private static long obtainTimeForOrder(long loadTime) {
+        return loadTime == Constants.NO_VALUE ? Long.MAX_VALUE : loadTime;
+    }
+
+    /**
+     * @return null if there is no profile, or it is not of the current apk.
+     */
+    private ClassLoadProfile obtainClassLoadProfile(int totalDexNum) {
+        File profileFile = new File(mRootDir, Constants.CLASS_LOAD_PROFILE_FILENAME);
+        if (!profileFile.exists()) {
+            return null;
+        }
+        try {
+            ClassLoadProfile profile = ClassLoadProfile.read(profileFile);
+            return profile.getDexCount() == totalDexNum ? profile : null;
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to read class load profile", e);
+            return null;
+        }
+    }
 
-                    Monitor.get().logDebug("Process holder, " + fasterHolder);
+    /**
+     * @return false if free space is too small to optimize any more.
+     */
+    private boolean optimizeDex(int secondaryNumber, InstallManifest manifest, ApkSession apkSession) {
+        int type = manifest.getType(secondaryNumber, Constants.LOAD_TYPE_APK_BUF);
 
-                    try {
-                        long start = System.nanoTime();
+        File dexFile = new File(mDexDir, secondaryNumber + Constants.DEX_SUFFIX);
+        File optDexFile = new File(mOptDexDir, secondaryNumber + Constants.ODEX_SUFFIX);
 
-                        fasterHolder = fasterHolder.toFasterHolder(preferences);
+        DexHolder dexHolder;
+        try {
+            if (type == Constants.LOAD_TYPE_APK_BUF) {
+                ZipIndex.DexEntry dexFileEntry = apkSession.getDexEntry(secondaryNumber);
+                // only be faster here, so dex is streamed to file rather than read into bytes
+                dexHolder = new DexHolder.ApkBuffer(secondaryNumber, apkSession, dexFileEntry, dexFile, optDexFile);
+            } else if (type == Constants.LOAD_TYPE_DEX_BUF) {
+                dexHolder = new DexHolder.DexBuffer(secondaryNumber, dexFile, optDexFile);
+            } else if (type == Constants.LOAD_TYPE_DEX_OPT) {
+                dexHolder = new DexHolder.DexOpt(secondaryNumber, dexFile, optDexFile, false);
+            } else if (type == Constants.LOAD_TYPE_ZIP_OPT) {
+                File zipFile = new File(mZipDir, secondaryNumber + Constants.ZIP_SUFFIX);
+                File zipOptFile = new File(mZipDir, secondaryNumber + Constants.ODEX_SUFFIX);
+                dexHolder = new DexHolder.ZipOpt(secondaryNumber, zipFile, zipOptFile);
+            } else {
+                dexHolder = null;
+            }
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to obtain holder of " + secondaryNumber, e);
+            return true;
+        }
 
-                        if (fasterHolder != null) {
-                            long cost = System.nanoTime() - start;
+        Monitor.get().logInfo("Process beginning holder {}, type: {}", dexHolder, type);
 
-                            DexHolder.StoreInfo info = fasterHolder.getInfo();
+        DexHolder fasterHolder = dexHolder;
 
-                            Monitor.get().logDebug("Put info, " + info.index + " file is " + info.file.getPath());
+        // records are committed once the dex is done, rather than after every holder
+        try {
+            while (fasterHolder != null) {
+                long freeSpace = Environment.getDataDirectory().getFreeSpace();
+                if (freeSpace < Constants.SPACE_MIN_THRESHOLD) {
+                    Monitor.get().logWarning("Free space is too small: {}, compare to {}",
+                            freeSpace, Constants.SPACE_THRESHOLD);
+                    return false;
+                } else {
+                    Monitor.get().logInfo("Free space is enough: {}, continue...", freeSpace);
+                }
 
-                            long reducedSpace = Environment.getDataDirectory().getFreeSpace() - freeSpace;
+                Monitor.get().logDebug("Process holder, {}", fasterHolder);
 
-                            Monitor.get().reportAfterInstall(cost, freeSpace, reducedSpace, fasterHolder.toString());
-                        }
-                    } catch (Throwable tr) {
-                        Monitor.get().logErrorAfterInstall("Fail to be faster", tr);
-                        Result.get().unFatalThrowable.add(tr);
-                    }
+                InstallTracer.Span span = InstallTracer.begin("to faster holder", secondaryNumber);
+                try {
+                    long start = System.nanoTime();
 
-                    Locker prepareLocker = new Locker(new File(mRootDir, Constants.LOCK_PREPARE_FILENAME));
-                    if (prepareLocker.test()) {
-                        prepareLocker.close();
-                    } else {
-                        Monitor.get().logInfo("Other process is waiting for installing");
-                        return;
+                    fasterHolder = fasterHolder.toFasterHolder(manifest);
+
+                    if (fasterHolder != null) {
+                        long cost = System.nanoTime() - start;
+                        recordCost(fasterHolder, manifest.getEntrySize(secondaryNumber), cost);
+
+                        DexHolder.StoreInfo info = fasterHolder.getInfo();
+
+                        Monitor.get().logDebug("Put info, {} file is {}", info.index, info.file);
+
+                        long reducedSpace = Environment.getDataDirectory().getFreeSpace() - freeSpace;
+
+                        Monitor.get().reportAfterInstall(cost, freeSpace, reducedSpace, fasterHolder.toString());
                     }
+                } catch (Throwable tr) {
+                    Monitor.get().logErrorAfterInstall("Fail to be faster", tr);
+                    Result.get().unFatalThrowable.add(tr);
+                } finally {
+                    span.end();
                 }
             }
-        } catch (Throwable e) {
-            Monitor.get().logWarning("Failed to install extracted secondary dex files", e);
         } finally {
-            locker.close();
-            Monitor.get().logInfo("Exit quietly");
-            stopSelf();
-            System.exit(0);
+            commitManifest(manifest);
+        }
+        return true;
+    }
+
+    private static void commitManifest(InstallManifest manifest) {
+        try {
+            manifest.commit();
+        } catch (IOException e) {
+            Monitor.get().logWarning("Fail to commit manifest", e);
+        }
+    }
+
+    /**
+     * Costs of making holders faster are learned as those of extracting and dexopt while installing,
+     * which are rarely done at startup on devices supporting fast load.
+     */
+    private void recordCost(DexHolder fasterHolder, long size, long cost) {
+        if (fasterHolder instanceof DexHolder.DexBuffer) {
+            mLoadPlanner.record(LoadPlanner.OP_EXTRACT, size, cost);
+        } else if (fasterHolder instanceof DexHolder.DexOpt) {
+            mLoadPlanner.record(LoadPlanner.OP_DEXOPT, size, cost);
+        }
+    }
+
+    /**
+     * Main process takes the prepare lock before waiting for the install lock held by this process.
+     * Once it is found, this process is killed at once rather than after current holder is faster,
+     * so that the install lock is released by system. Files are all written to temp ones and renamed,
+     * and records are committed only after a dex is optimized, so the interrupted one is resumed in
+     * next optimization.
+     */
+    private static class PreemptWatchdog extends Thread {
+        private final Locker mPrepareLocker;
+
+        PreemptWatchdog(File prepareLockFile) {
+            super("BoostMultiDex-PreemptWatchdog");
+            setDaemon(true);
+            mPrepareLocker = new Locker(prepareLockFile);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                if (mPrepareLocker.isHeldByOthers()) {
+                    Monitor.get().logInfo("Other process is waiting for installing, preempt at once");
+                    Process.killProcess(Process.myPid());
+                    return;
+                }
+
+                try {
+                    Thread.sleep(Constants.PREEMPT_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
         }
     }
 }
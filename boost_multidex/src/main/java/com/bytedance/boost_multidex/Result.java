@@ -14,6 +14,14 @@ public class Result {
 
     public boolean modified;
 
+    public int reusedDexCount;
+
+    public int lazyDexCount;
+
+    public boolean apkFingerprintMatched;
+
+    public long apkCheckCost;
+
     public long freeSpaceBefore;
 
     public long freeSpaceAfter;
@@ -36,8 +44,21 @@ public class Result {
 
     public List<Throwable> unFatalThrowable = new ArrayList<>();
 
+    /**
+     * Info of each loaded dex holder, unless {@link Monitor#isReportDexInfo} returns false.
+     */
     public List<String> dexInfoList = new ArrayList<>();
 
+    /**
+     * Operations of each dex loaded at startup, with their predicted and actual costs,
+     * and sums of the costs in nanoseconds. Costs of producing dexes in parallel are all summed.
+     */
+    public List<String> loadPlanList = new ArrayList<>();
+
+    public long predictedLoadCost;
+
+    public long actualLoadCost;
+
     public boolean supportFastLoadDex;
 
     public static Result get() {
@@ -71,4 +92,8 @@ public class Result {
     public void addDexInfo(String dexInfo) {
         dexInfoList.add(dexInfo);
     }
+
+    public void addLoadPlan(String loadPlan) {
+        loadPlanList.add(loadPlan);
+    }
 }
@@ -22,34 +22,41 @@ package com.bytedance.boost_multidex;
 
 import android.app.ActivityManager;
 import android.content.Context;
-import android.os.Environment;
+import android.util.Log;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.Adler32;
 import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 /**
  * Created by Xiaolin(xiaolin.gan@bytedance.com) on 2019/3/28.
  */
 public class Utility {
+    /* magic and version of a checksummed file */
+    private static final int CHECKSUMMED_HEADER_SIZE = 4 + 4;
+    /* crc32 at the end of a checksummed file */
+    private static final int CHECKSUM_SIZE = 8;
+
     /**
      * Replace the value of a field containing a non null array, by a new array containing the
      * elements of the original array plus the elements of extraElements.
@@ -60,80 +67,118 @@ public class Utility {
     static void expandFieldArray(Object instance, String fieldName,
                                          Object[] extraElements) throws NoSuchFieldException, IllegalArgumentException,
             IllegalAccessException {
-        Field field = findField(instance.getClass(), fieldName);
-        Object[] original = (Object[]) field.get(instance);
-        Object[] combined = (Object[]) Array.newInstance(
-                original.getClass().getComponentType(), original.length + extraElements.length);
-        System.arraycopy(original, 0, combined, 0, original.length);
-        System.arraycopy(extraElements, 0, combined, original.length, extraElements.length);
-        field.set(instance, combined);
+        InstallTracer.Span span = InstallTracer.begin("expandFieldArray");
+        try {
+            Field field = findField(instance.getClass(), fieldName);
+            Object[] original = (Object[]) field.get(instance);
+            Object[] combined = (Object[]) Array.newInstance(
+                    original.getClass().getComponentType(), original.length + extraElements.length);
+            System.arraycopy(original, 0, combined, 0, original.length);
+            System.arraycopy(extraElements, 0, combined, original.length, extraElements.length);
+            field.set(instance, combined);
+        } finally {
+            span.end();
+        }
     }
 
-    static boolean isBetterUseApkBuf() {
-        Runtime runtime = Runtime.getRuntime();
-        long freeSpaceAfter = Environment.getDataDirectory().getFreeSpace();
-        long remainedMem = runtime.maxMemory() - runtime.totalMemory();
-        Monitor.get().logInfo("Memory remains " + remainedMem
-                            + ", free space " + freeSpaceAfter);
-        return remainedMem > Constants.MEM_THRESHOLD
-                || freeSpaceAfter < Constants.SPACE_MIN_THRESHOLD;
+    static void clearDirFiles(File dir) {
+        clearDirFiles(dir, null);
     }
 
-    static void clearDirFiles(File dir) {
+    /**
+     * Only clear files whose name starts with prefix, or all files if prefix is null.
+     */
+    static void clearDirFiles(File dir, String prefix) {
         if (!dir.exists()) {
             return;
         }
 
         File[] files = dir.listFiles();
         if (files == null) {
-            Monitor.get().logWarning("Failed to list secondary dex dir content (" + dir.getPath() + ").");
+            Monitor.get().logWarning("Failed to list secondary dex dir content ({}).", dir);
             return;
         }
         for (File oldFile : files) {
-            Monitor.get().logInfo("Trying to delete old file " + oldFile.getPath() + " of size " +
-                    oldFile.length());
+            if (prefix != null && !oldFile.getName().startsWith(prefix)) {
+                continue;
+            }
+            if (Monitor.get().isLoggable(Log.INFO)) {
+                Monitor.get().logInfo("Trying to delete old file " + oldFile.getPath() + " of size " +
+                        oldFile.length());
+            }
             if (!oldFile.delete()) {
-                Monitor.get().logWarning("Failed to delete old file " + oldFile.getPath());
+                Monitor.get().logWarning("Failed to delete old file {}", oldFile);
             } else {
-                Monitor.get().logInfo("Deleted old file " + oldFile.getPath());
+                Monitor.get().logInfo("Deleted old file {}", oldFile);
             }
         }
     }
 
+    /**
+     * Cheap check of a dex file by its header, only the magic and the file size in header are checked.
+     */
+    static boolean isDexFileStructureValid(File file) throws IOException {
+        byte[] header = new byte[Constants.DEX_HEADER_CHECK_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < Constants.DEX_HEADER_SIZE) {
+                return false;
+            }
+            raf.readFully(header);
+        } finally {
+            closeQuietly(raf);
+        }
+
+        // dex\n0??\0
+        if (header[0] != 'd' || header[1] != 'e' || header[2] != 'x' || header[3] != '\n'
+                || header[4] < '0' || header[4] > '9' || header[5] < '0' || header[5] > '9'
+                || header[6] < '0' || header[6] > '9' || header[7] != 0) {
+            return false;
+        }
+
+        long fileSize = (header[32] & 0xFFL) | ((header[33] & 0xFFL) << 8)
+                | ((header[34] & 0xFFL) << 16) | ((header[35] & 0xFFL) << 24);
+        return fileSize == file.length();
+    }
+
     static long doFileCheckSum(File file) throws IOException {
         long result = 0;
 
         if (!file.exists()) {
-            Monitor.get().logInfo("File is not exist: " + file.getPath());
+            Monitor.get().logInfo("File is not exist: {}", file);
             return result;
         }
 
-        if (Monitor.get().isEnableNativeCheckSum()) {
-            try {
-                result = BoostNative.obtainCheckSum(file.getPath());
-            } catch(Throwable tr) {
-                Monitor.get().logWarning("Failed to native obtainCheckSum in " + file.getPath(), tr);
+        InstallTracer.Span span = InstallTracer.begin("checksum");
+        try {
+            if (Monitor.get().isEnableNativeCheckSum()) {
+                try {
+                    result = BoostNative.obtainCheckSum(file.getPath());
+                } catch(Throwable tr) {
+                    Monitor.get().logWarning("Failed to native obtainCheckSum in " + file.getPath(), tr);
+                }
             }
-        }
 
-        if (result == 0) {
-            Monitor.get().logWarning("Fall back to java impl");
-            CheckedInputStream checkedInputStream = null;
-            byte[] buf = new byte[Constants.BUFFER_SIZE];
-            try {
-                checkedInputStream = new CheckedInputStream(
-                        new FileInputStream(file), new Adler32());
-
-                for (;;) {
-                    if (checkedInputStream.read(buf) < 0) {
-                        break;
+            if (result == 0) {
+                Monitor.get().logWarning("Fall back to java impl");
+                FileInputStream fileInputStream = null;
+                // large reads, so that few calls go through to file and to native adler32
+                byte[] buf = new byte[Constants.CHECKSUM_BUFFER_SIZE];
+                try {
+                    fileInputStream = new FileInputStream(file);
+                    Adler32 adler32 = new Adler32();
+                    int length;
+                    while ((length = fileInputStream.read(buf)) != -1) {
+                        adler32.update(buf, 0, length);
                     }
-                }
 
-                result = checkedInputStream.getChecksum().getValue();
-            } finally {
-                Utility.closeQuietly(checkedInputStream);
+                    result = adler32.getValue();
+                } finally {
+                    Utility.closeQuietly(fileInputStream);
+                }
             }
+        } finally {
+            span.end();
         }
 
         return result;
@@ -148,41 +193,12 @@ public class Utility {
     static long doZipCheckSum(File apk) throws IOException {
         RandomAccessFile raf = null;
 
+        InstallTracer.Span span = InstallTracer.begin("zip checksum");
         try {
             raf = new RandomAccessFile(apk, "r");
-            long scanOffset = raf.length() - Constants.ENDHDR;
-            if (scanOffset < 0) {
-                throw new ZipException("File too short to be a zip file: " + raf.length());
-            }
-
-            long stopOffset = scanOffset - 0x10000 /* ".ZIP file comment"'s max length */;
-            if (stopOffset < 0) {
-                stopOffset = 0;
-            }
-
-            int endSig = Integer.reverseBytes(Constants.ENDSIG);
-            while (true) {
-                raf.seek(scanOffset);
-                if (raf.readInt() == endSig) {
-                    break;
-                }
-
-                scanOffset--;
-                if (scanOffset < stopOffset) {
-                    throw new ZipException("End Of Central Directory signature not found");
-                }
-            }
-            // Read the End Of Central Directory. ENDHDR includes the signature
-            // bytes,
-            // which we've already read.
-
-            // Pull out the information we need.
-            raf.skipBytes(2); // diskNumber
-            raf.skipBytes(2); // diskWithCentralDir
-            raf.skipBytes(2); // numEntries
-            raf.skipBytes(2); // totalNumEntries
-            long size = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
-            long offset = Integer.reverseBytes(raf.readInt()) & 0xFFFFFFFFL;
+            long[] centralDir = ZipIndex.findCentralDirectory(raf);
+            long offset = centralDir[0];
+            long size = centralDir[1];
 
             // computeCrcOfCentralDir
             CRC32 crc = new CRC32();
@@ -203,6 +219,28 @@ public class Utility {
             return crc.getValue();
         } finally {
             closeQuietly(raf);
+            span.end();
+        }
+    }
+
+    /**
+     * Wait for the result of a future, rethrowing the failure of its task as is if possible.
+     */
+    static <T> T obtainFutureResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
         }
     }
 
@@ -252,6 +290,36 @@ public class Utility {
         throw new NoSuchFieldException("Field " + name + " not found in " + targetClazz);
     }
 
+    /**
+     * Remove target from the parent chain of loader wherever it is, so that loaders inserted
+     * beneath it later are kept in the chain.
+     * @return false if target is not in the chain.
+     */
+    static synchronized boolean unlinkParentLoader(ClassLoader loader, ClassLoader target)
+            throws NoSuchFieldException, IllegalAccessException {
+        for (ClassLoader child = loader; child != null; child = child.getParent()) {
+            if (child.getParent() == target) {
+                findFieldRecursively(child.getClass(), "parent").set(child, target.getParent());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace target by its parent, only if it is still the direct parent of loader.
+     * @return false if another loader is the parent.
+     */
+    static synchronized boolean removeParentLoader(ClassLoader loader, ClassLoader target)
+            throws NoSuchFieldException, IllegalAccessException {
+        Field parentField = findFieldRecursively(loader.getClass(), "parent");
+        if (parentField.get(loader) != target) {
+            return false;
+        }
+        parentField.set(loader, target.getParent());
+        return true;
+    }
+
     static Field findField(Class<?> targetClazz, String name) throws NoSuchFieldException {
         Field field = targetClazz.getDeclaredField(name);
         if (!field.isAccessible()) {
@@ -295,40 +363,81 @@ public class Utility {
         return constructor;
     }
 
+    /**
+     * @return inode of file by stat of libcore, or NO_VALUE if it is not available.
+     */
+    static long obtainInode(File file) {
+        try {
+            Object os = findFieldRecursively(Class.forName("libcore.io.Libcore"), "os").get(null);
+            Object structStat = findMethodRecursively(os.getClass(), "stat", String.class).invoke(os, file.getPath());
+            return findFieldRecursively(structStat.getClass(), "st_ino").getLong(structStat);
+        } catch (Throwable e) {
+            Monitor.get().logWarning("Fail to obtain inode of " + file.getPath(), e);
+            return Constants.NO_VALUE;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of chars in text.
+     */
+    static long hash64(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static void deleteFiles(File... files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                Monitor.get().logWarning("Failed to delete old file {}", file);
+            }
+        }
+    }
+
     static File ensureDirCreated(File parentDir, String dirName) throws IOException {
         File resultDir = new File(parentDir, dirName);
         mkdirChecked(resultDir);
         return resultDir;
     }
 
-    static File obtainEntryFileInZip(ZipFile apkZipFile, ZipEntry fileEntry, File target) throws IOException {
+    static File obtainEntryFileInZip(ApkSession apkSession, ZipIndex.DexEntry fileEntry, File target) throws IOException {
         IOException suppressedException = null;
 
-        int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
-        while (retriedCount > 0) {
-            InputStream in = apkZipFile.getInputStream(fileEntry);
-            try {
-                return obtainEntryFileFromInputStream(in, target);
-            } catch (IOException e) {
-                suppressedException = e;
-            } finally {
-                closeQuietly(in);
-            }
+        InstallTracer.Span span = InstallTracer.begin("extract");
+        BufferPool bufferPool = apkSession.getBufferPool();
+        byte[] buffer = bufferPool.obtain(Constants.SCRATCH_BUFFER_SIZE);
+        try {
+            int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
+            while (retriedCount > 0) {
+                InputStream in = apkSession.getInputStream(fileEntry);
+                try {
+                    return obtainEntryFileFromInputStream(in, target, buffer);
+                } catch (IOException e) {
+                    suppressedException = e;
+                } finally {
+                    closeQuietly(in);
+                }
 
-            retriedCount--;
+                retriedCount--;
+            }
+        } finally {
+            bufferPool.recycle(buffer);
+            span.end();
         }
 
         throw suppressedException;
     }
 
-    static File obtainEntryFileFromInputStream(InputStream in, File target) throws IOException {
+    static File obtainEntryFileFromInputStream(InputStream in, File target, byte[] buffer) throws IOException {
         // Temp files must not start with extractedFilePrefix to get cleaned up in prepareDexDir()
-        File tmp = File.createTempFile("tmp-", target.getName(),
+        File tmp = File.createTempFile(Constants.TEMP_FILE_PREFIX, target.getName(),
                 target.getParentFile());
-        Monitor.get().logInfo("Extracting " + tmp.getPath());
+        Monitor.get().logInfo("Extracting {}", tmp);
         FileOutputStream out = new FileOutputStream(tmp);
         try {
-            byte[] buffer = new byte[Constants.BUFFER_SIZE];
             int length = in.read(buffer);
             while (length != -1) {
                 out.write(buffer, 0, length);
@@ -338,7 +447,7 @@ public class Utility {
                 throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
                         "\" (tmp of \"" + target.getAbsolutePath() + "\")");
             }
-            Monitor.get().logInfo("Renaming to " + target.getPath());
+            Monitor.get().logInfo("Renaming to {}", target);
             if (!tmp.renameTo(target)) {
                 throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
                         "\" to \"" + target.getAbsolutePath() + "\"");
@@ -350,26 +459,54 @@ public class Utility {
         }
     }
 
-    static byte[] obtainEntryBytesInZip(ZipFile apkZipFile, ZipEntry dexFileEntry) throws IOException {
+    static byte[] obtainEntryBytesInZip(ApkSession apkSession, ZipIndex.DexEntry dexFileEntry) throws IOException {
         IOException suppressedException = null;
 
-        int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
-        while (retriedCount > 0) {
-            InputStream in = null;
-            try {
-                in = apkZipFile.getInputStream(dexFileEntry);
-                return obtainBytesFromInputStream(in);
-            } catch (IOException e) {
-                suppressedException = e;
-            } finally {
-                closeQuietly(in);
+        InstallTracer.Span span = InstallTracer.begin("inflate");
+        try {
+            int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
+            while (retriedCount > 0) {
+                InputStream in = null;
+                try {
+                    in = apkSession.getInputStream(dexFileEntry);
+                    return obtainBytesFromInputStream(in, dexFileEntry.size);
+                } catch (IOException e) {
+                    suppressedException = e;
+                } finally {
+                    closeQuietly(in);
+                }
+                retriedCount--;
             }
-            retriedCount--;
+        } finally {
+            span.end();
         }
 
         throw suppressedException;
     }
 
+    /**
+     * Read into a buffer of exact size if it is known, so that neither growing nor copying happens.
+     */
+    static byte[] obtainBytesFromInputStream(InputStream in, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            return obtainBytesFromInputStream(in);
+        }
+
+        byte[] bytes = new byte[(int) size];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = in.read(bytes, offset, bytes.length - offset);
+            if (length == -1) {
+                throw new EOFException("Expect " + size + " bytes, but only read " + offset);
+            }
+            offset += length;
+        }
+        if (in.read() != -1) {
+            throw new IOException("Read more bytes than expected " + size);
+        }
+        return bytes;
+    }
+
     static byte[] obtainBytesFromInputStream(InputStream in) throws IOException {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         try {
@@ -384,52 +521,58 @@ public class Utility {
         }
     }
 
-    static void obtainZipForEntryFileInZip(ZipFile apkZipFile, ZipEntry dexFileEntry, File validZipFile) throws IOException {
+    static void obtainZipForEntryFileInZip(ApkSession apkSession, ZipIndex.DexEntry dexFileEntry, File validZipFile) throws IOException {
         IOException suppressedException = null;
 
-        int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
-        while (retriedCount > 0) {
-            InputStream in = apkZipFile.getInputStream(dexFileEntry);
+        BufferPool bufferPool = apkSession.getBufferPool();
+        byte[] buffer = bufferPool.obtain(Constants.SCRATCH_BUFFER_SIZE);
 
-            File tmp = File.createTempFile("tmp-", Constants.ZIP_SUFFIX,
-                    validZipFile.getParentFile());
+        try {
+            int retriedCount = Constants.MAX_EXTRACT_ATTEMPTS;
+            while (retriedCount > 0) {
+                InputStream in = apkSession.getInputStream(dexFileEntry);
+
+                File tmp = File.createTempFile(Constants.TEMP_FILE_PREFIX, Constants.ZIP_SUFFIX,
+                        validZipFile.getParentFile());
 
-            try {
-                ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
                 try {
-                    ZipEntry classesDex = new ZipEntry("classes.dex");
-                    // keep zip entry time since it is the criteria used by Dalvik
-                    classesDex.setTime(dexFileEntry.getTime());
-                    out.putNextEntry(classesDex);
-
-                    byte[] buffer = new byte[Constants.BUFFER_SIZE];
-                    int length = in.read(buffer);
-                    while (length != -1) {
-                        out.write(buffer, 0, length);
-                        length = in.read(buffer);
+                    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                    try {
+                        ZipEntry classesDex = new ZipEntry("classes.dex");
+                        // keep zip entry time since it is the criteria used by Dalvik
+                        classesDex.setTime(dexFileEntry.getTime());
+                        out.putNextEntry(classesDex);
+
+                        int length = in.read(buffer);
+                        while (length != -1) {
+                            out.write(buffer, 0, length);
+                            length = in.read(buffer);
+                        }
+                        out.closeEntry();
+                    } finally {
+                        out.close();
+                    }
+                    if (!tmp.setReadOnly()) {
+                        throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
+                                "\" (tmp of \"" + validZipFile.getAbsolutePath() + "\")");
                     }
-                    out.closeEntry();
+                    Monitor.get().logInfo("Renaming to {}", validZipFile);
+                    if (!tmp.renameTo(validZipFile)) {
+                        throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                                "\" to \"" + validZipFile.getAbsolutePath() + "\"");
+                    }
+                    return;
+                } catch (IOException e) {
+                    suppressedException = e;
                 } finally {
-                    out.close();
-                }
-                if (!tmp.setReadOnly()) {
-                    throw new IOException("Failed to mark readonly \"" + tmp.getAbsolutePath() +
-                            "\" (tmp of \"" + validZipFile.getAbsolutePath() + "\")");
-                }
-                Monitor.get().logInfo("Renaming to " + validZipFile.getPath());
-                if (!tmp.renameTo(validZipFile)) {
-                    throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
-                            "\" to \"" + validZipFile.getAbsolutePath() + "\"");
+                    Utility.closeQuietly(in);
+                    tmp.delete(); // return status ignored
                 }
-                return;
-            } catch (IOException e) {
-                suppressedException = e;
-            }finally {
-                Utility.closeQuietly(in);
-                tmp.delete(); // return status ignored
-            }
 
-            retriedCount--;
+                retriedCount--;
+            }
+        } finally {
+            bufferPool.recycle(buffer);
         }
 
         if (suppressedException != null) {
@@ -452,18 +595,129 @@ public class Utility {
         }
     }
 
+    /**
+     * Bytes are written to a temp file which is renamed to file, so that a half-written file
+     * is never taken if the process dies.
+     */
     static boolean storeBytesToFile(byte[] bytes, File file) {
+        File tmp = new File(file.getParentFile(), Constants.TEMP_FILE_PREFIX + file.getName());
         FileOutputStream fileOutputStream = null;
         try {
-            fileOutputStream = new FileOutputStream(file);
+            fileOutputStream = new FileOutputStream(tmp);
             fileOutputStream.write(bytes);
+            fileOutputStream.close();
+            fileOutputStream = null;
+            renameTempFile(tmp, file);
             return true;
         } catch (IOException e) {
             Monitor.get().logError("fail to store bytes to file", e);
             return false;
         } finally {
             closeQuietly(fileOutputStream);
+            tmp.delete(); // return status ignored
+        }
+    }
+
+    /**
+     * Region is written to a temp file which is renamed to file, as {@link #storeBytesToFile}.
+     */
+    static boolean storeFileRegionToFile(File srcFile, long offset, long length, File file) {
+        File tmp = new File(file.getParentFile(), Constants.TEMP_FILE_PREFIX + file.getName());
+        RandomAccessFile randomAccessFile = null;
+        FileOutputStream fileOutputStream = null;
+        try {
+            randomAccessFile = new RandomAccessFile(srcFile, "r");
+            randomAccessFile.seek(offset);
+            fileOutputStream = new FileOutputStream(tmp);
+            byte[] buffer = new byte[Constants.BUFFER_SIZE];
+            long stillToCopy = length;
+            while (stillToCopy > 0) {
+                int count = (int) Math.min(buffer.length, stillToCopy);
+                randomAccessFile.readFully(buffer, 0, count);
+                fileOutputStream.write(buffer, 0, count);
+                stillToCopy -= count;
+            }
+            fileOutputStream.close();
+            fileOutputStream = null;
+            renameTempFile(tmp, file);
+            return true;
+        } catch (IOException e) {
+            Monitor.get().logError("fail to store file region to file", e);
+            return false;
+        } finally {
+            closeQuietly(fileOutputStream);
+            closeQuietly(randomAccessFile);
+            tmp.delete(); // return status ignored
+        }
+    }
+
+    private static void renameTempFile(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to rename \"" + tmp.getAbsolutePath() +
+                    "\" to \"" + file.getAbsolutePath() + "\"");
+        }
+    }
+
+    /**
+     * Write magic, version and body followed by crc32 of them into a temp file, sync it and rename it
+     * to file, so that file is either the old one or the new one if the process dies.
+     */
+    static void writeChecksummedFile(File file, int magic, int version, byte[] body) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKSUMMED_HEADER_SIZE + body.length + CHECKSUM_SIZE);
+        buffer.putInt(magic);
+        buffer.putInt(version);
+        buffer.put(body);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc32.getValue());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            closeQuietly(out);
+        }
+
+        try {
+            renameTempFile(tmp, file);
+        } finally {
+            tmp.delete(); // return status ignored
+        }
+    }
+
+    /**
+     * Read a file written by {@link #writeChecksummedFile}.
+     * @return bytes of the file positioned at the version, and limited before the crc32.
+     * @throws IOException if the file is of another magic, or corrupted.
+     */
+    static ByteBuffer readChecksummedFile(File file, int magic) throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < CHECKSUMMED_HEADER_SIZE + CHECKSUM_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid length " + length + " of " + file.getName());
+            }
+            bytes = new byte[(int) length];
+            raf.readFully(bytes);
+        } finally {
+            closeQuietly(raf);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != magic) {
+            throw new IOException("Unknown format of " + file.getName());
+        }
+        int checksumOffset = bytes.length - CHECKSUM_SIZE;
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, checksumOffset);
+        if (crc32.getValue() != buffer.getLong(checksumOffset)) {
+            throw new IOException(file.getName() + " is corrupted");
         }
+        buffer.limit(checksumOffset);
+        return buffer;
     }
 
     static boolean isOptimizeProcess(String processName) {
@@ -0,0 +1,427 @@
+package com.bytedance.boost_multidex;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A minimal zip reader for secondary dexes in apk. The End Of Central Directory is found with one tail
+ * read, and the central directory is scanned only once, computing its crc32 meanwhile, which is the same
+ * as {@link Utility#doZipCheckSum(File)}. Only entries named {@code classesN.dex} are kept.
+ * Does not support zip64 nor multidisk, the same as {@link Utility#doZipCheckSum(File)}.
+ */
+class ZipIndex implements Closeable {
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int CENSIG = 0x02014b50;
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENHDR = 46;
+    private static final int LOCHDR = 30;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    private static final int CENTRAL_DIR_BUFFER_SIZE = 0x10000;
+
+    private final File mZipFile;
+
+    private final RandomAccessFile mRaf;
+
+    private final FileChannel mChannel;
+
+    private long mCentralDirCrc;
+
+    private List<DexEntry> mDexEntryList;
+
+    static class DexEntry {
+        final int secondaryNumber;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        final int dosTime;
+
+        private volatile long mDataOffset = -1;
+
+        DexEntry(int secondaryNumber, int method, long crc, long compressedSize, long size,
+                 long localHeaderOffset, int dosTime) {
+            this.secondaryNumber = secondaryNumber;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.dosTime = dosTime;
+        }
+
+        String getName() {
+            return Constants.DEX_PREFIX + secondaryNumber + Constants.DEX_SUFFIX;
+        }
+
+        /**
+         * The same as {@link java.util.zip.ZipEntry#getTime()}.
+         */
+        long getTime() {
+            GregorianCalendar calendar = new GregorianCalendar();
+            calendar.set(Calendar.MILLISECOND, 0);
+            int time = dosTime & 0xFFFF;
+            int date = dosTime >>> 16;
+            calendar.set(1980 + ((date >> 9) & 0x7f), ((date >> 5) & 0xf) - 1,
+                    date & 0x1f, (time >> 11) & 0x1f, (time >> 5) & 0x3f,
+                    (time & 0x1f) << 1);
+            return calendar.getTime().getTime();
+        }
+
+        @Override
+        public String toString() {
+            return getName() + ", method: " + method + ", size: " + size
+                    + ", compressed size: " + compressedSize + ", crc: " + crc;
+        }
+    }
+
+    private ZipIndex(File zipFile) throws IOException {
+        mZipFile = zipFile;
+        mRaf = new RandomAccessFile(zipFile, "r");
+        mChannel = mRaf.getChannel();
+    }
+
+    static ZipIndex read(File zipFile) throws IOException {
+        ZipIndex zipIndex = new ZipIndex(zipFile);
+        try {
+            zipIndex.readCentralDirectory();
+            return zipIndex;
+        } catch (IOException e) {
+            zipIndex.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return {offset, size} of the central directory.
+     */
+    static long[] findCentralDirectory(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        if (length < Constants.ENDHDR) {
+            throw new ZipException("File too short to be a zip file: " + length);
+        }
+
+        // most apks have no comment, so try the last ENDHDR bytes before the whole tail
+        byte[] tail = new byte[Constants.ENDHDR];
+        raf.seek(length - Constants.ENDHDR);
+        raf.readFully(tail);
+        int endOffset = 0;
+        if (readInt(tail, 0) != Constants.ENDSIG) {
+            int tailLength = (int) Math.min(length, Constants.ENDHDR + MAX_COMMENT_LENGTH);
+            tail = new byte[tailLength];
+            raf.seek(length - tailLength);
+            raf.readFully(tail);
+            endOffset = tailLength - Constants.ENDHDR - 1;
+            while (readInt(tail, endOffset) != Constants.ENDSIG) {
+                endOffset--;
+                if (endOffset < 0) {
+                    throw new ZipException("End Of Central Directory signature not found");
+                }
+            }
+        }
+
+        long size = readInt(tail, endOffset + 12) & 0xFFFFFFFFL;
+        long offset = readInt(tail, endOffset + 16) & 0xFFFFFFFFL;
+        if (offset + size > length) {
+            throw new ZipException("Invalid central directory, offset " + offset + ", size " + size
+                    + ", file length " + length);
+        }
+        return new long[] {offset, size};
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long[] centralDir = findCentralDirectory(mRaf);
+        long remaining = centralDir[1];
+        mRaf.seek(centralDir[0]);
+
+        CRC32 crc = new CRC32();
+        Map<Integer, DexEntry> dexEntryMap = new HashMap<>();
+
+        byte[] buffer = new byte[(int) Math.min(CENTRAL_DIR_BUFFER_SIZE, Math.max(remaining, CENHDR))];
+        int start = 0;
+        int end = 0;
+        int required = CENHDR;
+        boolean inHeader = true;
+        while (true) {
+            if (end - start < required) {
+                if (remaining == 0) {
+                    if (end > start) {
+                        throw new ZipException("Truncated central directory");
+                    }
+                    break;
+                }
+
+                // keep unparsed bytes at the beginning, and grow for a record larger than buffer
+                if (required > buffer.length) {
+                    byte[] newBuffer = new byte[required];
+                    System.arraycopy(buffer, start, newBuffer, 0, end - start);
+                    buffer = newBuffer;
+                } else {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                }
+                end -= start;
+                start = 0;
+
+                int length = (int) Math.min(buffer.length - end, remaining);
+                mRaf.readFully(buffer, end, length);
+                crc.update(buffer, end, length);
+                end += length;
+                remaining -= length;
+                continue;
+            }
+
+            if (inHeader) {
+                if (readInt(buffer, start) != CENSIG) {
+                    throw new ZipException("Central directory entry has bad signature");
+                }
+                required = CENHDR + readShort(buffer, start + 28)
+                        + readShort(buffer, start + 30) + readShort(buffer, start + 32);
+                inHeader = false;
+                continue;
+            }
+
+            int nameLength = readShort(buffer, start + 28);
+            int secondaryNumber = parseSecondaryNumber(buffer, start + CENHDR, nameLength);
+            if (secondaryNumber > 0) {
+                DexEntry dexEntry = new DexEntry(secondaryNumber,
+                        readShort(buffer, start + 10),
+                        readInt(buffer, start + 16) & 0xFFFFFFFFL,
+                        readInt(buffer, start + 20) & 0xFFFFFFFFL,
+                        readInt(buffer, start + 24) & 0xFFFFFFFFL,
+                        readInt(buffer, start + 42) & 0xFFFFFFFFL,
+                        readInt(buffer, start + 12));
+                dexEntryMap.put(secondaryNumber, dexEntry);
+            }
+
+            start += required;
+            required = CENHDR;
+            inHeader = true;
+        }
+
+        // secondary dexes must be numbered continuously, the same as probing them one by one
+        List<DexEntry> dexEntryList = new ArrayList<>();
+        DexEntry dexEntry;
+        while ((dexEntry = dexEntryMap.get(dexEntryList.size() + 2)) != null) {
+            dexEntryList.add(dexEntry);
+        }
+
+        mCentralDirCrc = crc.getValue();
+        mDexEntryList = dexEntryList;
+    }
+
+    /**
+     * @return N of {@code classesN.dex} if it is a secondary dex, otherwise -1.
+     */
+    private static int parseSecondaryNumber(byte[] buffer, int offset, int length) {
+        int prefixLength = Constants.DEX_PREFIX.length();
+        int suffixLength = Constants.DEX_SUFFIX.length();
+        int digitLength = length - prefixLength - suffixLength;
+        if (digitLength <= 0 || digitLength > 4) {
+            return -1;
+        }
+
+        for (int i = 0; i < prefixLength; i++) {
+            if (buffer[offset + i] != Constants.DEX_PREFIX.charAt(i)) {
+                return -1;
+            }
+        }
+
+        for (int i = 0; i < suffixLength; i++) {
+            if (buffer[offset + prefixLength + digitLength + i] != Constants.DEX_SUFFIX.charAt(i)) {
+                return -1;
+            }
+        }
+
+        int number = 0;
+        for (int i = 0; i < digitLength; i++) {
+            int digit = buffer[offset + prefixLength + i] - '0';
+            if (digit < 0 || digit > 9 || (i == 0 && digit == 0)) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+
+        return number >= 2 ? number : -1;
+    }
+
+    long getCentralDirCrc() {
+        return mCentralDirCrc;
+    }
+
+    /**
+     * @return entries of secondary dexes, the first one is classes2.dex.
+     */
+    List<DexEntry> getDexEntryList() {
+        return mDexEntryList;
+    }
+
+    File getZipFile() {
+        return mZipFile;
+    }
+
+    /**
+     * @return offset of entry data in zip, which is after the local header.
+     */
+    long obtainDataOffset(DexEntry entry) throws IOException {
+        long dataOffset = entry.mDataOffset;
+        if (dataOffset < 0) {
+            byte[] localHeader = new byte[LOCHDR];
+            readFully(ByteBuffer.wrap(localHeader), entry.localHeaderOffset);
+            if (readInt(localHeader, 0) != LOCSIG) {
+                throw new ZipException("Local file header has bad signature: " + entry.getName());
+            }
+            dataOffset = entry.localHeaderOffset + LOCHDR
+                    + readShort(localHeader, 26) + readShort(localHeader, 28);
+            entry.mDataOffset = dataOffset;
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Streams are read by position, so that they can be used in several threads at the same time.
+     * Input buffer of inflater is taken from bufferPool, and given back when the stream is closed.
+     * An inflated entry shorter than its size fails with ZipException, rather than ends quietly.
+     */
+    InputStream getInputStream(final DexEntry entry, final BufferPool bufferPool) throws IOException {
+        InputStream in = new EntryInputStream(obtainDataOffset(entry), entry.compressedSize);
+        if (entry.method == METHOD_STORED) {
+            return in;
+        } else if (entry.method == METHOD_DEFLATED) {
+            return new InflaterInputStream(in, new Inflater(true), 1) {
+                {
+                    buf = bufferPool.obtain(Constants.SCRATCH_BUFFER_SIZE);
+                }
+
+                private boolean mEof;
+                private long mInflatedSize;
+                private boolean mClosed;
+
+                /**
+                 * Inflater without zlib header needs an extra dummy byte after the data on some zlib versions,
+                 * as java.util.zip.ZipFile feeds it.
+                 */
+                @Override
+                protected void fill() throws IOException {
+                    if (mEof) {
+                        throw new EOFException("Unexpected end of entry " + entry.getName());
+                    }
+                    len = in.read(buf, 0, buf.length);
+                    if (len == -1) {
+                        buf[0] = 0;
+                        len = 1;
+                        mEof = true;
+                    }
+                    inf.setInput(buf, 0, len);
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int count = super.read(buffer, offset, length);
+                    if (count > 0) {
+                        mInflatedSize += count;
+                    } else if (count < 0 && mInflatedSize != entry.size) {
+                        throw new ZipException("Inflated " + mInflatedSize + " bytes of " + entry.size
+                                + " in " + entry.getName());
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (mClosed) {
+                        return;
+                    }
+                    mClosed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                        bufferPool.recycle(buf);
+                    }
+                }
+            };
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.method + " of " + entry.getName());
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int length = mChannel.read(buffer, position);
+            if (length < 0) {
+                throw new ZipException("Unexpected end of zip " + mZipFile.getPath());
+            }
+            position += length;
+        }
+    }
+
+    @Override
+    public void close() {
+        Utility.closeQuietly(mChannel);
+        Utility.closeQuietly(mRaf);
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16) | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    private class EntryInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+
+        EntryInputStream(long position, long length) {
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] singleByte = new byte[1];
+            return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int count = mChannel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, mRemaining)), mPosition);
+            if (count < 0) {
+                throw new ZipException("Unexpected end of zip " + mZipFile.getPath());
+            }
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(mRemaining, Integer.MAX_VALUE);
+        }
+    }
+}
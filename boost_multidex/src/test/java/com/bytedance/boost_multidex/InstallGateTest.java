@@ -0,0 +1,96 @@
+package com.bytedance.boost_multidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of which threads {@link InstallGate} makes wait for installation.
+ */
+public class InstallGateTest {
+    private static final String GATED_CLASS = "com.example.app.InSecondaryDex";
+
+    private FutureTask<Void> mInstallation;
+    private AppClassLoader mLoader;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        Monitor.init(new Monitor().setLogLevel(Monitor.LOG_LEVEL_OFF));
+        mInstallation = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        mLoader = new AppClassLoader();
+        assertNotNull(InstallGate.attach(mLoader, mInstallation));
+    }
+
+    @After
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+        mInstallation.run();
+    }
+
+    @Test
+    public void producerThreadDoesNotWait() throws Exception {
+        mExecutor = Executors.newSingleThreadExecutor(InstallGate.newInstallWorkerFactory());
+        assertGatedClassNotFound(mExecutor.submit(new LoadGatedClass()));
+    }
+
+    @Test
+    public void otherThreadWaitsForInstallation() throws Exception {
+        mExecutor = Executors.newSingleThreadExecutor();
+        Future<Class<?>> future = mExecutor.submit(new LoadGatedClass());
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Class is loaded before installation");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        mInstallation.run();
+        assertGatedClassNotFound(future);
+    }
+
+    private static void assertGatedClassNotFound(Future<Class<?>> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Gated class is found");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClassNotFoundException);
+        }
+    }
+
+    private class LoadGatedClass implements Callable<Class<?>> {
+        @Override
+        public Class<?> call() throws Exception {
+            return mLoader.parent.loadClass(GATED_CLASS);
+        }
+    }
+
+    /**
+     * Mirrors the parent field of BaseDexClassLoader, which the gate is inserted into.
+     */
+    private static class AppClassLoader extends ClassLoader {
+        ClassLoader parent = AppClassLoader.class.getClassLoader();
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            throw new ClassNotFoundException(name);
+        }
+    }
+}
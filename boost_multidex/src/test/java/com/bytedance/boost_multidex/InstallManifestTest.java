@@ -0,0 +1,154 @@
+package com.bytedance.boost_multidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of reading and writing the {@link InstallManifest} file.
+ */
+public class InstallManifestTest {
+    private static final int MAGIC = 0x424d4458;
+    private static final int VERSION = 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Monitor.init(new Monitor().setLogLevel(Monitor.LOG_LEVEL_OFF));
+        mFile = File.createTempFile("install", ".manifest");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        ZipIndex.DexEntry dexEntry = new ZipIndex.DexEntry(3, ZipIndex.METHOD_DEFLATED,
+                0x12345678L, 1000, 3000, 200, 0);
+
+        InstallManifest manifest = new InstallManifest(mFile);
+        manifest.putApkInfo(3, 1500000000000L, 0xCAFEBABEL);
+        manifest.putApkFingerprint(42);
+        manifest.putType(2, Constants.LOAD_TYPE_DEX_OPT);
+        manifest.putDexInfo(2, 11, 12);
+        manifest.putOdexInfo(2, 13, 14);
+        manifest.resetRecord(3, dexEntry);
+        manifest.putType(3, Constants.LOAD_TYPE_APK_BUF);
+        manifest.commit();
+
+        InstallManifest loaded = InstallManifest.read(mFile);
+        assertEquals(3, loaded.getDexNumber());
+        assertEquals(1500000000000L, loaded.getApkTimeStamp());
+        assertEquals(0xCAFEBABEL, loaded.getApkCrc());
+        assertEquals(42, loaded.getApkFingerprint());
+        assertEquals(Constants.LOAD_TYPE_DEX_OPT, loaded.getType(2, Constants.LOAD_TYPE_INVALID));
+        assertEquals(11, loaded.getDexCheckSum(2));
+        assertEquals(12, loaded.getDexTime(2));
+        assertEquals(13, loaded.getOdexCheckSum(2));
+        assertEquals(14, loaded.getOdexTime(2));
+        assertEquals(Constants.LOAD_TYPE_APK_BUF, loaded.getType(3, Constants.LOAD_TYPE_INVALID));
+        assertTrue(loaded.isSameEntry(3, dexEntry));
+        assertEquals(3000, loaded.getEntrySize(3));
+        assertEquals(manifest.toString(), loaded.toString());
+
+        // nothing is written if nothing is changed
+        assertTrue(mFile.setLastModified(0));
+        loaded.commit();
+        assertEquals(0, mFile.lastModified());
+    }
+
+    @Test
+    public void corruptedFileIsRejected() throws IOException {
+        InstallManifest manifest = new InstallManifest(mFile);
+        manifest.putApkInfo(2, 1, 2);
+        manifest.putType(2, Constants.LOAD_TYPE_DEX_OPT);
+        manifest.commit();
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(12);
+            int b = raf.read();
+            raf.seek(12);
+            raf.write(b ^ 0x01);
+        } finally {
+            raf.close();
+        }
+
+        try {
+            InstallManifest.read(mFile);
+            fail("Corrupted manifest is read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void commitRecordsKeepsOthersInFile() throws IOException {
+        InstallManifest manifest = new InstallManifest(mFile);
+        manifest.putApkInfo(3, 1, 2);
+        manifest.putType(2, Constants.LOAD_TYPE_APK_BUF);
+        manifest.putType(3, Constants.LOAD_TYPE_APK_BUF);
+        manifest.commit();
+
+        // changed by another process after this is loaded
+        InstallManifest other = InstallManifest.read(mFile);
+        other.putType(3, Constants.LOAD_TYPE_DEX_OPT);
+        other.commit();
+
+        manifest.putType(2, Constants.LOAD_TYPE_ZIP_OPT);
+        manifest.commitRecords(Collections.singletonList(2));
+
+        InstallManifest loaded = InstallManifest.read(mFile);
+        assertEquals(Constants.LOAD_TYPE_ZIP_OPT, loaded.getType(2, Constants.LOAD_TYPE_INVALID));
+        assertEquals(Constants.LOAD_TYPE_DEX_OPT, loaded.getType(3, Constants.LOAD_TYPE_INVALID));
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        writeManifest(VERSION + 1);
+        try {
+            InstallManifest.read(mFile);
+            fail("Manifest of another version is read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Write a manifest by hand with an empty header and no record.
+     */
+    private void writeManifest(int version) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 8 + 8 + 4 + 4 + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(version);
+        buffer.putLong(100);
+        buffer.putLong(200);
+        buffer.putLong(7);
+        buffer.putInt(2);
+        buffer.putInt(0);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc32.getValue());
+
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.bytedance.boost_multidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of when {@link LoadPlanner} writes its costs.
+ */
+public class LoadPlannerTest {
+    private static final long SIZE = 1000000;
+
+    private File mRootDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Monitor.init(new Monitor().setLogLevel(Monitor.LOG_LEVEL_OFF));
+        mRootDir = File.createTempFile("load", "planner");
+        mRootDir.delete();
+        mRootDir.mkdir();
+        mFile = new File(mRootDir, Constants.LOAD_COST_FILENAME);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mRootDir.delete();
+    }
+
+    @Test
+    public void firstSampleIsCommitted() {
+        LoadPlanner planner = LoadPlanner.load(mRootDir);
+        planner.record(LoadPlanner.OP_LOAD_ODEX, SIZE, 2 * SIZE);
+        planner.commit(mRootDir, false);
+        assertTrue(mFile.exists());
+        assertEquals(planner.toString(), LoadPlanner.load(mRootDir).toString());
+    }
+
+    @Test
+    public void smallChangeIsNotCommitted() {
+        LoadPlanner planner = LoadPlanner.load(mRootDir);
+        planner.record(LoadPlanner.OP_LOAD_ODEX, SIZE, 2 * SIZE);
+        planner.commit(mRootDir, false);
+        assertTrue(mFile.setLastModified(0));
+
+        planner = LoadPlanner.load(mRootDir);
+        planner.record(LoadPlanner.OP_LOAD_ODEX, SIZE, 2 * SIZE + SIZE / 10);
+        planner.commit(mRootDir, false);
+        assertEquals(0, mFile.lastModified());
+
+        // written along with other files of the launch
+        planner.commit(mRootDir, true);
+        assertTrue(mFile.lastModified() != 0);
+    }
+
+    @Test
+    public void largeChangeIsCommitted() {
+        LoadPlanner planner = LoadPlanner.load(mRootDir);
+        planner.record(LoadPlanner.OP_LOAD_ODEX, SIZE, 2 * SIZE);
+        planner.commit(mRootDir, false);
+        assertTrue(mFile.setLastModified(0));
+
+        planner = LoadPlanner.load(mRootDir);
+        planner.record(LoadPlanner.OP_LOAD_ODEX, SIZE, 4 * SIZE);
+        planner.commit(mRootDir, false);
+        assertTrue(mFile.lastModified() != 0);
+    }
+}
@@ -0,0 +1,237 @@
+package com.bytedance.boost_multidex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test of {@link ZipIndex} against archives written by {@link ZipOutputStream}
+ * and read back by {@link ZipFile}.
+ */
+public class ZipIndexTest {
+    private static final int DEX_SIZE = 64 * 1024;
+
+    private File mZipFile;
+
+    private long mCentralDirOffset;
+
+    private long mCentralDirSize;
+
+    @Before
+    public void setUp() throws IOException {
+        Monitor.init(new Monitor().setLogLevel(Monitor.LOG_LEVEL_OFF));
+        mZipFile = File.createTempFile("zip_index", ".apk");
+    }
+
+    @After
+    public void tearDown() {
+        mZipFile.delete();
+    }
+
+    @Test
+    public void storedAndDeflatedEntries() throws IOException {
+        writeZip(null);
+
+        ZipIndex zipIndex = ZipIndex.read(mZipFile);
+        ZipFile zipFile = new ZipFile(mZipFile);
+        try {
+            List<ZipIndex.DexEntry> dexEntryList = zipIndex.getDexEntryList();
+            assertEquals(2, dexEntryList.size());
+            assertEquals(ZipIndex.METHOD_STORED, dexEntryList.get(0).method);
+            assertEquals(ZipIndex.METHOD_DEFLATED, dexEntryList.get(1).method);
+
+            BufferPool bufferPool = new BufferPool(Constants.BUFFER_POOL_CAPACITY);
+            for (int i = 0; i < dexEntryList.size(); i++) {
+                ZipIndex.DexEntry dexEntry = dexEntryList.get(i);
+                assertEquals(i + 2, dexEntry.secondaryNumber);
+
+                ZipEntry zipEntry = zipFile.getEntry(dexEntry.getName());
+                assertNotNull(zipEntry);
+                assertEquals(zipEntry.getMethod(), dexEntry.method);
+                assertEquals(zipEntry.getCrc(), dexEntry.crc);
+                assertEquals(zipEntry.getSize(), dexEntry.size);
+                assertEquals(zipEntry.getCompressedSize(), dexEntry.compressedSize);
+                assertEquals(zipEntry.getTime(), dexEntry.getTime());
+
+                assertArrayEquals(readFully(zipFile.getInputStream(zipEntry)),
+                        readFully(zipIndex.getInputStream(dexEntry, bufferPool)));
+            }
+        } finally {
+            zipFile.close();
+            zipIndex.close();
+        }
+    }
+
+    @Test
+    public void centralDirCrc() throws IOException {
+        writeZip(null);
+        assertCentralDirCrc();
+    }
+
+    @Test
+    public void archiveWithComment() throws IOException {
+        StringBuilder comment = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            comment.append((char) ('a' + i % 26));
+        }
+        writeZip(comment.toString());
+
+        ZipIndex zipIndex = ZipIndex.read(mZipFile);
+        try {
+            assertEquals(2, zipIndex.getDexEntryList().size());
+        } finally {
+            zipIndex.close();
+        }
+        assertCentralDirCrc();
+    }
+
+    @Test(expected = ZipException.class)
+    public void truncatedEndOfCentralDirectory() throws IOException {
+        writeZip(null);
+
+        RandomAccessFile raf = new RandomAccessFile(mZipFile, "rw");
+        try {
+            raf.setLength(raf.length() - Constants.ENDHDR / 2);
+        } finally {
+            raf.close();
+        }
+
+        ZipIndex.read(mZipFile).close();
+    }
+
+    @Test(expected = ZipException.class)
+    public void inflatedEntryShorterThanSize() throws IOException {
+        readDeflatedEntry(false, 1);
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedDeflatedEntry() throws IOException {
+        readDeflatedEntry(true, 0);
+    }
+
+    /**
+     * Read the deflated classes3.dex, with its data truncated or its size changed as if the archive lies.
+     */
+    private void readDeflatedEntry(boolean truncate, long sizeDelta) throws IOException {
+        writeZip(null);
+
+        ZipIndex zipIndex = ZipIndex.read(mZipFile);
+        try {
+            ZipIndex.DexEntry dexEntry = zipIndex.getDexEntryList().get(1);
+            assertEquals(ZipIndex.METHOD_DEFLATED, dexEntry.method);
+            long compressedSize = truncate ? dexEntry.compressedSize / 2 : dexEntry.compressedSize;
+            ZipIndex.DexEntry lyingEntry = new ZipIndex.DexEntry(dexEntry.secondaryNumber, dexEntry.method,
+                    dexEntry.crc, compressedSize, dexEntry.size + sizeDelta, dexEntry.localHeaderOffset,
+                    dexEntry.dosTime);
+            readFully(zipIndex.getInputStream(lyingEntry, new BufferPool(Constants.BUFFER_POOL_CAPACITY)));
+        } finally {
+            zipIndex.close();
+        }
+    }
+
+    private void assertCentralDirCrc() throws IOException {
+        byte[] centralDir = new byte[(int) mCentralDirSize];
+        RandomAccessFile raf = new RandomAccessFile(mZipFile, "r");
+        try {
+            raf.seek(mCentralDirOffset);
+            raf.readFully(centralDir);
+        } finally {
+            raf.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(centralDir);
+
+        ZipIndex zipIndex = ZipIndex.read(mZipFile);
+        try {
+            assertEquals(crc.getValue(), zipIndex.getCentralDirCrc());
+        } finally {
+            zipIndex.close();
+        }
+        assertEquals(crc.getValue(), Utility.doZipCheckSum(mZipFile));
+    }
+
+    /**
+     * Write classes.dex, a STORED classes2.dex, a DEFLATED classes3.dex and a resource,
+     * and remember where the central directory is.
+     */
+    private void writeZip(String comment) throws IOException {
+        Random random = new Random(DEX_SIZE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            putEntry(out, "classes.dex", ZipEntry.DEFLATED, randomBytes(random));
+            putEntry(out, "classes2.dex", ZipEntry.STORED, randomBytes(random));
+            putEntry(out, "classes3.dex", ZipEntry.DEFLATED, new byte[DEX_SIZE]);
+            putEntry(out, "res/raw/data.bin", ZipEntry.DEFLATED, randomBytes(random));
+            out.flush();
+            mCentralDirOffset = bytes.size();
+            if (comment != null) {
+                out.setComment(comment);
+            }
+        } finally {
+            out.close();
+        }
+        int commentLength = comment == null ? 0 : comment.length();
+        mCentralDirSize = bytes.size() - mCentralDirOffset - Constants.ENDHDR - commentLength;
+
+        FileOutputStream fileOut = new FileOutputStream(mZipFile);
+        try {
+            bytes.writeTo(fileOut);
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, int method, byte[] data)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setCrc(crc.getValue());
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static byte[] randomBytes(Random random) {
+        byte[] data = new byte[DEX_SIZE];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}